@@ -0,0 +1,165 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal HTTP/1.1 server on the device, serving the recorded Flickr page and
+ * sample JPEGs from the test assets. The device has no com.sun.net.httpserver,
+ * so this is the instrumented twin of StubFlickrServer.
+ *
+ * Every page number gets its own ids and photo urls, and every server its own
+ * url prefix, so nothing is found in a cache left by an earlier run.
+ */
+class AssetHttpServer {
+    private static final String TAG = "AssetHttpServer";
+    private static final String LIVE_HOST = "https://live.staticflickr.com/";
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mConnections = Executors.newCachedThreadPool();
+    private final String mPage;
+    private final byte[] mThumbnail;
+    private final byte[] mMedium;
+    private final String mPhotoPrefix;
+
+    AssetHttpServer(AssetManager assets) throws IOException {
+        mPage = new String(readAsset(assets, "flickr_recent_100.json"), "UTF-8");
+        mThumbnail = readAsset(assets, "sample_240x160.jpg");
+        mMedium = readAsset(assets, "sample_500x333.jpg");
+
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mPhotoPrefix = getBaseUrl() + "/photos/" + System.currentTimeMillis() + "/";
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, TAG);
+        acceptThread.start();
+    }
+
+    String getBaseUrl(){
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    String getEndpoint(){
+        return getBaseUrl() + "/services/rest";
+    }
+
+    //a url for the 240px sample that no cache has seen yet
+    String photoUrl(int n){
+        return mPhotoPrefix + "single/" + n + "_m.jpg";
+    }
+
+    void shutdown(){
+        try{
+            mServerSocket.close();
+        }catch (IOException ioe){
+            Log.w(TAG, "Close failed", ioe);
+        }
+        mConnections.shutdownNow();
+    }
+
+    private void acceptLoop(){
+        while(!mServerSocket.isClosed()){
+            try{
+                final Socket socket = mServerSocket.accept();
+                mConnections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }catch (IOException ioe){
+                //closed by shutdown()
+            }
+        }
+    }
+
+    //keep-alive, answers requests on the socket until the client hangs up
+    private void serve(Socket socket){
+        try{
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while((requestLine = in.readLine()) != null){
+                String header;
+                while((header = in.readLine()) != null && !header.isEmpty()){
+                    //headers are not needed
+                }
+
+                String[] parts = requestLine.split(" ");
+                String path = parts.length > 1 ? parts[1] : "/";
+                if(path.startsWith("/services/rest")){
+                    send(out, "application/json", pageFor(path).getBytes("UTF-8"));
+                }else if(path.startsWith("/photos/")){
+                    send(out, "image/jpeg", path.endsWith("_m.jpg") ? mThumbnail : mMedium);
+                }else{
+                    out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n"
+                            .getBytes("ISO-8859-1"));
+                    out.flush();
+                }
+            }
+        }catch (IOException ioe){
+            //client went away
+        }finally {
+            try{
+                socket.close();
+            }catch (IOException ignored){
+            }
+        }
+    }
+
+    private String pageFor(String path){
+        int page = 1;
+        int start = path.indexOf("page=");
+        if(start >= 0){
+            int end = path.indexOf('&', start);
+            try{
+                page = Integer.parseInt(path.substring(start + 5, end < 0 ? path.length() : end));
+            }catch (NumberFormatException ignored){
+            }
+        }
+        return mPage.replace("\"id\":\"", "\"id\":\"" + page)
+                .replace(LIVE_HOST, mPhotoPrefix + "p" + page + "/");
+    }
+
+    private static void send(OutputStream out, String contentType, byte[] body)
+            throws IOException {
+        String headers = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + body.length + "\r\n\r\n";
+        out.write(headers.getBytes("ISO-8859-1"));
+        out.write(body);
+        out.flush();
+    }
+
+    private static byte[] readAsset(AssetManager assets, String name) throws IOException {
+        InputStream in = assets.open(name);
+        try{
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while((bytesRead = in.read(buffer)) > 0){
+                out.write(buffer, 0, bytesRead);
+            }
+            return out.toByteArray();
+        }finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Sends benchmark numbers back as instrumentation status, so
+ * `adb shell am instrument -r -w` prints them as key=value lines that can be
+ * kept per commit and diffed. The same line also goes to logcat.
+ */
+class BenchmarkReport {
+    private static final String TAG = "Benchmark";
+
+    //min, median, p90 and max of the samples, in milliseconds
+    static void reportNanos(String name, long[] samples){
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+
+        Bundle results = new Bundle();
+        StringBuilder line = new StringBuilder(name);
+        put(results, line, name, "count", sorted.length);
+        if(sorted.length > 0){
+            put(results, line, name, "min_ms", millis(sorted[0]));
+            put(results, line, name, "median_ms", millis(sorted[sorted.length / 2]));
+            put(results, line, name, "p90_ms", millis(sorted[(sorted.length * 9) / 10]));
+            put(results, line, name, "max_ms", millis(sorted[sorted.length - 1]));
+        }
+        send(results, line);
+    }
+
+    static void reportValue(String name, String key, Object value){
+        Bundle results = new Bundle();
+        StringBuilder line = new StringBuilder(name);
+        put(results, line, name, key, value);
+        send(results, line);
+    }
+
+    private static void put(Bundle results, StringBuilder line, String name, String key,
+                            Object value){
+        results.putString(name + "." + key, String.valueOf(value));
+        line.append(' ').append(key).append('=').append(value);
+    }
+
+    private static void send(Bundle results, StringBuilder line){
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+        Log.i(TAG, line.toString());
+    }
+
+    private static String millis(long nanos){
+        return String.format(Locale.US, "%.2f", nanos / 1000000.0);
+    }
+}
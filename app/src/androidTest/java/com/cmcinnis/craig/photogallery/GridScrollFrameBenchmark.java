@@ -0,0 +1,185 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.view.Choreographer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Flings the gallery grid up and down over pages served by AssetHttpServer
+ * and records the interval between frames while it moves. Intervals well over
+ * one vsync are dropped frames.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GridScrollFrameBenchmark {
+    private static final int FLINGS_DOWN = 12;
+    private static final int FLINGS_UP = 6;
+    private static final int FLING_VELOCITY = 8000;
+    private static final int MIN_ITEMS = 60;
+    private static final long TIMEOUT_SECONDS = 20;
+    //more than 1.5 vsyncs at 60Hz counts as a dropped frame
+    private static final long JANK_NANOS = 25 * 1000 * 1000;
+
+    @Rule
+    public ActivityTestRule<PhotoGalleryActivity> mActivityRule =
+            new ActivityTestRule<>(PhotoGalleryActivity.class, false, false);
+
+    private Instrumentation mInstrumentation;
+    private AssetHttpServer mServer;
+    private String mStoredQuery;
+
+    @Before
+    public void setUp() throws Exception {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = InstrumentationRegistry.getTargetContext();
+        mServer = new AssetHttpServer(InstrumentationRegistry.getContext().getAssets());
+        FlickrFetcher.setEndpoint(mServer.getEndpoint());
+
+        //a query no earlier run has stored pages for
+        mStoredQuery = QueryPreferences.getStoredQuery(context);
+        QueryPreferences.setStoredQuery(context, "benchmark " + System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown(){
+        QueryPreferences.setStoredQuery(InstrumentationRegistry.getTargetContext(), mStoredQuery);
+        FlickrFetcher.setEndpoint(null);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void flingFrameTiming() throws Exception {
+        mActivityRule.launchActivity(null);
+        final RecyclerView grid = (RecyclerView) mActivityRule.getActivity()
+                .findViewById(R.id.photo_recycler_view);
+        waitForItems(grid);
+
+        final FrameRecorder recorder = new FrameRecorder();
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                recorder.start();
+            }
+        });
+        for(int i = 0; i < FLINGS_DOWN; i++){
+            flingAndSettle(grid, FLING_VELOCITY);
+        }
+        for(int i = 0; i < FLINGS_UP; i++){
+            flingAndSettle(grid, -FLING_VELOCITY);
+        }
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                recorder.stop();
+            }
+        });
+
+        long[] intervals = recorder.getIntervals();
+        int janky = 0;
+        for(long interval : intervals){
+            if(interval > JANK_NANOS){
+                janky++;
+            }
+        }
+        BenchmarkReport.reportNanos("grid_scroll.frame", intervals);
+        BenchmarkReport.reportValue("grid_scroll.frame", "janky", janky);
+    }
+
+    private void waitForItems(final RecyclerView grid) throws InterruptedException {
+        final AtomicInteger count = new AtomicInteger();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while(count.get() < MIN_ITEMS && System.currentTimeMillis() < deadline){
+            Thread.sleep(100);
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    count.set(grid.getAdapter() == null ? 0 : grid.getAdapter().getItemCount());
+                }
+            });
+        }
+        assertTrue("grid never filled", count.get() >= MIN_ITEMS);
+    }
+
+    private void flingAndSettle(final RecyclerView grid, final int velocity)
+            throws InterruptedException {
+        final CountDownLatch settled = new CountDownLatch(1);
+        final RecyclerView.OnScrollListener listener = new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if(newState == RecyclerView.SCROLL_STATE_IDLE){
+                    settled.countDown();
+                }
+            }
+        };
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                grid.addOnScrollListener(listener);
+                if(!grid.fling(0, velocity)){
+                    //already at the end
+                    settled.countDown();
+                }
+            }
+        });
+        settled.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                grid.removeOnScrollListener(listener);
+            }
+        });
+    }
+
+    //main thread only
+    private static class FrameRecorder implements Choreographer.FrameCallback {
+        private final List<Long> mIntervals = new ArrayList<>();
+        private long mLastFrameNanos = 0;
+        private boolean mRecording = false;
+
+        void start(){
+            mRecording = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void stop(){
+            mRecording = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        long[] getIntervals(){
+            long[] intervals = new long[mIntervals.size()];
+            for(int i = 0; i < intervals.length; i++){
+                intervals[i] = mIntervals.get(i);
+            }
+            return intervals;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if(mLastFrameNanos != 0){
+                mIntervals.add(frameTimeNanos - mLastFrameNanos);
+            }
+            mLastFrameNanos = frameTimeNanos;
+            if(mRecording){
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Download plus decode latency through ThumbnailDownloader, from queueing a
+ * url to the bitmap arriving on the response thread, against AssetHttpServer.
+ * Decodes at grid cell size in RGB_565, the way the gallery does.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailLatencyBenchmark {
+    private static final int SEQUENTIAL_THUMBNAILS = 50;
+    //about two screens of grid cells requested at once, as after a fling
+    private static final int BURST_THUMBNAILS = 48;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private AssetHttpServer mServer;
+    private HandlerThread mResponseThread;
+    private ThumbnailDownloader<Integer> mThumbnailDownloader;
+    private ThumbnailDiskCache mDiskCache;
+    private List<String> mUrls = new ArrayList<>();
+    private int mNextUrl = 0;
+
+    private long[] mQueuedAt;
+    private long[] mLatencies;
+    private CountDownLatch mDelivered;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mServer = new AssetHttpServer(InstrumentationRegistry.getContext().getAssets());
+        mDiskCache = ThumbnailDiskCache.get(context);
+
+        mResponseThread = new HandlerThread("ThumbnailLatencyBenchmark");
+        mResponseThread.start();
+        mThumbnailDownloader = new ThumbnailDownloader<>(
+                new Handler(mResponseThread.getLooper()), mDiskCache);
+        mThumbnailDownloader.setTargetSize(
+                context.getResources().getDisplayMetrics().widthPixels
+                        / PhotoGalleryFragment.SPAN_COUNT,
+                context.getResources().getDimensionPixelSize(R.dimen.gallery_item_height));
+        mThumbnailDownloader.setPreferRgb565(true);
+        mThumbnailDownloader.setThumbnailDownloadListener(
+                new ThumbnailDownloader.ThumbnailDownloadListener<Integer>() {
+                    @Override
+                    public void onThumbnailDownloaded(Integer target, Bitmap thumbnail, String url) {
+                        mLatencies[target] = System.nanoTime() - mQueuedAt[target];
+                        mDelivered.countDown();
+                    }
+                });
+    }
+
+    @After
+    public void tearDown(){
+        mThumbnailDownloader.quit();
+        mResponseThread.quit();
+        mServer.shutdown();
+        //keep the app's disk cache free of benchmark entries
+        for(String url : mUrls){
+            mDiskCache.remove(url);
+        }
+    }
+
+    //one thumbnail at a time, nothing else in the queues
+    @Test
+    public void sequentialLatency() throws Exception {
+        long[] latencies = new long[SEQUENTIAL_THUMBNAILS];
+        for(int i = 0; i < SEQUENTIAL_THUMBNAILS; i++){
+            latencies[i] = queueAndWait(1)[0];
+        }
+        BenchmarkReport.reportNanos("thumbnail.sequential", latencies);
+    }
+
+    //a screenful at once, the last one in bounds how long the screen stays gray
+    @Test
+    public void burstLatency() throws Exception {
+        long start = System.nanoTime();
+        long[] latencies = queueAndWait(BURST_THUMBNAILS);
+        long total = System.nanoTime() - start;
+
+        BenchmarkReport.reportNanos("thumbnail.burst", latencies);
+        BenchmarkReport.reportNanos("thumbnail.burst_total", new long[]{ total });
+        BenchmarkReport.reportValue("thumbnail.burst", "stats", mThumbnailDownloader.getStats());
+    }
+
+    private long[] queueAndWait(int count) throws InterruptedException {
+        mQueuedAt = new long[count];
+        mLatencies = new long[count];
+        mDelivered = new CountDownLatch(count);
+
+        for(int i = 0; i < count; i++){
+            String url = mServer.photoUrl(mNextUrl++);
+            mUrls.add(url);
+            mQueuedAt[i] = System.nanoTime();
+            mThumbnailDownloader.queueThumbnail(i, url);
+        }
+        assertTrue("thumbnails did not arrive",
+                mDelivered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return mLatencies;
+    }
+}
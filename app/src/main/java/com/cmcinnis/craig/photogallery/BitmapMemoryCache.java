@@ -0,0 +1,165 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Process-wide memory cache of decoded thumbnails, weighed in bytes.
+ *
+ * The budget is a fraction of the app's heap class, and the cache gives memory
+ * back when the system asks through onTrimMemory/onLowMemory. It lives with the
+ * application context so it survives fragment and activity recreation.
+ */
+public class BitmapMemoryCache implements ComponentCallbacks2 {
+    private static final String TAG = "BitmapMemoryCache";
+
+    //share of the heap class given to thumbnails
+    private static final int HEAP_FRACTION = 8;
+
+    private static BitmapMemoryCache sBitmapMemoryCache;
+
+    private static final Metrics.Counter HITS = Metrics.counter("memory_cache.hits");
+    private static final Metrics.Counter MISSES = Metrics.counter("memory_cache.misses");
+
+    private LruCache<String, Bitmap> mCache;
+    private BitmapPool mBitmapPool;
+
+    //bitmaps bound to a view right now, they must not be drawn over while on screen
+    private final Map<Bitmap, Integer> mDisplayCounts = new WeakHashMap<>();
+    //evicted while still on screen, pooled once the last view lets go of them
+    private final Set<Bitmap> mPendingRelease =
+            Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+
+    public static synchronized BitmapMemoryCache get(Context context){
+        if(sBitmapMemoryCache == null){
+            Context appContext = context.getApplicationContext();
+            sBitmapMemoryCache = new BitmapMemoryCache(appContext, BitmapPool.get(appContext));
+            appContext.registerComponentCallbacks(sBitmapMemoryCache);
+        }
+        return sBitmapMemoryCache;
+    }
+
+    private BitmapMemoryCache(Context context, BitmapPool bitmapPool){
+        mBitmapPool = bitmapPool;
+
+        ActivityManager activityManager = (ActivityManager)
+                context.getSystemService(Context.ACTIVITY_SERVICE);
+        int maxBytes = activityManager.getMemoryClass() * 1024 * 1024 / HEAP_FRACTION;
+        Log.i(TAG, "Thumbnail cache size " + maxBytes + " bytes");
+
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                                        Bitmap newValue) {
+                if(oldValue != newValue){
+                    releaseToPool(oldValue);
+                }
+            }
+        };
+    }
+
+    public Bitmap get(String url){
+        if(url == null){
+            return null;
+        }
+        Bitmap bitmap = mCache.get(url);
+        if(bitmap == null){
+            MISSES.increment();
+        }else{
+            HITS.increment();
+        }
+        return bitmap;
+    }
+
+    public void put(String url, Bitmap bitmap){
+        if(url == null || bitmap == null){
+            return;
+        }
+        mCache.put(url, bitmap);
+    }
+
+    public void clear(){
+        mCache.evictAll();
+        mBitmapPool.clear();
+    }
+
+    public BitmapPool getBitmapPool(){
+        return mBitmapPool;
+    }
+
+    //call when a view starts showing the bitmap
+    public synchronized void acquire(Bitmap bitmap){
+        if(bitmap == null){
+            return;
+        }
+        Integer count = mDisplayCounts.get(bitmap);
+        mDisplayCounts.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    //call when a view stops showing the bitmap
+    public synchronized void release(Bitmap bitmap){
+        Integer count = bitmap == null ? null : mDisplayCounts.get(bitmap);
+        if(count == null){
+            return;
+        }
+
+        if(count > 1){
+            mDisplayCounts.put(bitmap, count - 1);
+        }else{
+            mDisplayCounts.remove(bitmap);
+            if(mPendingRelease.remove(bitmap)){
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    private synchronized void releaseToPool(Bitmap bitmap){
+        if(mDisplayCounts.containsKey(bitmap)){
+            mPendingRelease.add(bitmap);
+        }else{
+            mBitmapPool.put(bitmap);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if(level >= TRIM_MEMORY_MODERATE){
+            //we are near the top of the kill list, give everything back
+            clear();
+        }else if(level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW
+                || level == TRIM_MEMORY_RUNNING_CRITICAL){
+            mCache.trimToSize(mCache.maxSize() / 2);
+            mBitmapPool.trimToSize(mBitmapPool.maxSize() / 2);
+        }
+        Log.i(TAG, "Trimmed for level " + level + ": " + toString());
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public String toString(){
+        return mCache.toString() + " " + mBitmapPool.toString();
+    }
+}
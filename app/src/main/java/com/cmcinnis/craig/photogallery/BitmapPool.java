@@ -0,0 +1,127 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Spare mutable bitmaps that the decoder can draw into through
+ * BitmapFactory.Options.inBitmap, bucketed by allocation size.
+ *
+ * Bitmaps evicted from the memory cache land here instead of going to the
+ * GC, so a long fling reuses the same few allocations over and over.
+ */
+public class BitmapPool {
+    //share of the heap class held as spare bitmaps
+    private static final int HEAP_FRACTION = 16;
+    //never hand out a bitmap more than this many times larger than needed
+    private static final int MAX_OVERSIZE_FACTOR = 4;
+
+    private static BitmapPool sBitmapPool;
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets = new TreeMap<>();
+    private final int mMaxSize;
+    private int mSize = 0;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mPutCount = 0;
+    private int mEvictionCount = 0;
+
+    public static synchronized BitmapPool get(Context context){
+        if(sBitmapPool == null){
+            ActivityManager activityManager = (ActivityManager) context
+                    .getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+            sBitmapPool = new BitmapPool(
+                    activityManager.getMemoryClass() * 1024 * 1024 / HEAP_FRACTION);
+        }
+        return sBitmapPool;
+    }
+
+    BitmapPool(int maxSize){
+        mMaxSize = maxSize;
+    }
+
+    public synchronized void put(Bitmap bitmap){
+        if(bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()){
+            return;
+        }
+
+        int size = bitmap.getAllocationByteCount();
+        if(size > mMaxSize){
+            return;
+        }
+
+        LinkedList<Bitmap> bucket = mBuckets.get(size);
+        if(bucket == null){
+            bucket = new LinkedList<>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.addFirst(bitmap);
+        mSize += size;
+        mPutCount++;
+
+        trimToSize(mMaxSize);
+    }
+
+    //a bitmap big enough to decode width x height pixels into, or null
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config){
+        int needed = width * height * bytesPerPixel(config);
+        Map.Entry<Integer, LinkedList<Bitmap>> entry = mBuckets.ceilingEntry(needed);
+        if(entry == null || entry.getKey() > needed * MAX_OVERSIZE_FACTOR){
+            mMissCount++;
+            return null;
+        }
+
+        Bitmap bitmap = entry.getValue().removeFirst();
+        if(entry.getValue().isEmpty()){
+            mBuckets.remove(entry.getKey());
+        }
+        mSize -= entry.getKey();
+        mHitCount++;
+        return bitmap;
+    }
+
+    public synchronized void trimToSize(int maxSize){
+        //drop the biggest bitmaps first, they are the least likely to fit a thumbnail
+        while(mSize > maxSize && !mBuckets.isEmpty()){
+            Map.Entry<Integer, LinkedList<Bitmap>> largest = mBuckets.lastEntry();
+            largest.getValue().removeLast();
+            if(largest.getValue().isEmpty()){
+                mBuckets.remove(largest.getKey());
+            }
+            mSize -= largest.getKey();
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized void clear(){
+        trimToSize(0);
+    }
+
+    public int maxSize(){
+        return mMaxSize;
+    }
+
+    @Override
+    public synchronized String toString(){
+        int requests = mHitCount + mMissCount;
+        int hitPercent = requests == 0 ? 0 : 100 * mHitCount / requests;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%,"
+                        + "puts=%d,evictions=%d]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent, mPutCount, mEvictionCount);
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config){
+        if(config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444){
+            return 2;
+        }else if(config == Bitmap.Config.ALPHA_8){
+            return 1;
+        }
+        return 4;
+    }
+}
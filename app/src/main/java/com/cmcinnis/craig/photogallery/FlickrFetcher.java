@@ -1,21 +1,12 @@
 package com.cmcinnis.craig.photogallery;
 
 import android.net.Uri;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.Type;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -25,37 +16,57 @@ public class FlickrFetcher {
 
     private static final String FETCH_RECENT_METHODS = "flickr.photos.getRecent";
     private static final String SEARCH_METHOD = "flickr.photos.search";
-    private static final Uri ENDPOINT = Uri
-            .parse("https://api.flickr.com/services/rest")
-            .buildUpon()
-            .appendQueryParameter("api_key", API_KEY)
-            .appendQueryParameter("format", "json")
-            .appendQueryParameter("nojsoncallback", "1")
-            .appendQueryParameter("extras", "url_s")
-            .build();
+    private static final String DEFAULT_ENDPOINT = "https://api.flickr.com/services/rest";
+    private static volatile Uri sEndpoint = buildEndpoint(DEFAULT_ENDPOINT);
 
-    public byte[] getUrlBytes(String urlSpec) throws IOException{
-        URL url = new URL(urlSpec);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    private static final Metrics.Histogram PAGE_TIME = Metrics.histogram("fetch.page");
+    private static final Metrics.Counter PAGE_ERRORS = Metrics.counter("fetch.errors");
 
-        try{
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            InputStream in = connection.getInputStream();
+    private HttpTransport mHttpTransport;
 
-            if(connection.getResponseCode() != HttpURLConnection.HTTP_OK){
-                throw new IOException(connection.getResponseMessage() + ": with " + urlSpec);
-            }
+    //points every fetcher at a stub server, for benchmarks and tests
+    @VisibleForTesting
+    public static void setEndpoint(String endpoint){
+        sEndpoint = buildEndpoint(endpoint == null ? DEFAULT_ENDPOINT : endpoint);
+    }
 
-            int bytesRead = 0;
-            byte[] buffer = new byte[1024];
-            while((bytesRead = in.read(buffer)) > 0){
-                out.write(buffer, 0, bytesRead);
-            }
+    private static Uri buildEndpoint(String endpoint){
+        return Uri.parse(endpoint)
+                .buildUpon()
+                .appendQueryParameter("api_key", API_KEY)
+                .appendQueryParameter("format", "json")
+                .appendQueryParameter("nojsoncallback", "1")
+                .appendQueryParameter("extras", "url_t,url_s,url_q,url_m")
+                .build();
+    }
 
-            out.close();
-            return out.toByteArray();
+    public FlickrFetcher(){
+        this(HttpTransport.get());
+    }
+
+    public FlickrFetcher(HttpTransport httpTransport){
+        mHttpTransport = httpTransport;
+    }
+
+    public byte[] getUrlBytes(String urlSpec) throws IOException{
+        return mHttpTransport.getBytes(urlSpec);
+    }
+
+    /**
+     * Streams the body at urlSpec into the disk cache as it arrives and
+     * returns the new entry opened for reading. Null, with no request made,
+     * if the cache is not taking entries.
+     */
+    public FileInputStream downloadToCache(String urlSpec, ThumbnailDiskCache diskCache)
+            throws IOException{
+        if(!diskCache.isWritable()){
+            return null;
+        }
+        HttpTransport.Response response = mHttpTransport.execute(urlSpec, false);
+        try{
+            return diskCache.put(urlSpec, response.getInputStream());
         }finally {
-            connection.disconnect();
+            response.close();
         }
     }
 
@@ -64,25 +75,64 @@ public class FlickrFetcher {
     }
 
 
-    public List<GalleryItem> downloadGalleryItems(String url){
+    public List<GalleryItem> downloadGalleryItems(String urlSpec){
 
         List<GalleryItem> items = new ArrayList<>();
+        long start = Metrics.startTimer();
+        boolean traced = Metrics.beginSection("FlickrFetcher.fetch");
         try{
-            String jsonString = getUrlString(url);
-            Log.i(TAG, "Received JSON: " + jsonString);
-            JSONObject jsonBody = new JSONObject(jsonString);
-            parseItems(items, jsonBody);
+            HttpTransport.Response response = mHttpTransport.execute(urlSpec, false);
+            try{
+                //parse straight off the wire instead of buffering the whole page
+                items = GalleryItemParser.parse(response.getInputStream());
+            }finally {
+                response.close();
+            }
+            PAGE_TIME.recordSince(start);
+            Log.i(TAG, "Received " + items.size() + " items in " + response.getTiming());
+        }catch (InterruptedIOException iioe){
+            //superseded by a newer request, not a failure
+            Log.d(TAG, "Cancelled " + urlSpec);
         }catch (IOException ioe){
+            PAGE_ERRORS.increment();
             Log.e(TAG, "Failed to fetch items", ioe);
-        }catch (JSONException je){
-            Log.e(TAG, "Failed to parse JSON, je");
+        }finally {
+            Metrics.endSection(traced);
         }
         return items;
     }
 
+    /**
+     * Conditional fetch for the background poll. Returns null when Flickr says
+     * the page has not changed since the last poll. The first page is asked for
+     * with the validators kept in seenIds, and a changed page leaves its new
+     * ones there for the caller to save; later pages only use this process's.
+     */
+    public List<GalleryItem> pollPhotos(String query, int pageNumber, SeenIdSet seenIds)
+            throws IOException{
+        String url = query == null
+                ? buildUrl(FETCH_RECENT_METHODS, null, pageNumber)
+                : buildUrl(SEARCH_METHOD, query, pageNumber);
+
+        HttpTransport.Response response = pageNumber == 1
+                ? mHttpTransport.execute(url, seenIds.getPageValidators())
+                : mHttpTransport.execute(url, true);
+        try{
+            if(response.isNotModified()){
+                return null;
+            }
+            if(pageNumber == 1){
+                seenIds.setPageValidators(response.getValidators());
+            }
+            return GalleryItemParser.parse(response.getInputStream());
+        }finally {
+            response.close();
+        }
+    }
+
     //pass in 0 if there is no page number
     private String buildUrl(String method, String query, int pageNumber){
-        Uri.Builder uriBuilder = ENDPOINT.buildUpon()
+        Uri.Builder uriBuilder = sEndpoint.buildUpon()
                 .appendQueryParameter("method", method);
         if(method.equals(SEARCH_METHOD)){
             uriBuilder.appendQueryParameter("text", query);
@@ -104,22 +154,4 @@ public class FlickrFetcher {
         String url = buildUrl(SEARCH_METHOD, query, pageNumber);
         return downloadGalleryItems(url);
     }
-
-    private void parseItems(List<GalleryItem> items, JSONObject jsonBody)
-            throws IOException, JSONException{
-        Gson gson = new Gson();
-        Type galleryItemType = new TypeToken<ArrayList<GalleryItem>>() {}.getType();
-
-        JSONObject photosJsonObject = jsonBody.getJSONObject("photos");
-        JSONArray photosJsonArray = photosJsonObject.getJSONArray("photo");
-        String jsonPhotoString = photosJsonArray.toString();
-
-        List<GalleryItem> galleryItemList = gson.fromJson(jsonPhotoString, galleryItemType);
-
-        for(int i = 0; i < galleryItemList.size(); i++){
-            if(galleryItemList.get(i).getUrl() == null)
-                galleryItemList.remove(i);
-        }
-        items.addAll(galleryItemList);
-    }
 }
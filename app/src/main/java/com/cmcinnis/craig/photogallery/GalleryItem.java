@@ -5,6 +5,9 @@ import android.net.Uri;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class GalleryItem {
 
     @SerializedName("title")
@@ -13,7 +16,7 @@ public class GalleryItem {
 
     @SerializedName("id")
     @Expose()
-    private String mId;
+    private long mId;
 
     @SerializedName("url_s")
     @Expose()
@@ -23,20 +26,41 @@ public class GalleryItem {
     @Expose()
     private String mOwner;
 
+    //what the image urls are built from, see GalleryItemStore
+    private int mFarm;
+    private String mServer;
+    private String mSecret;
+
+    //every size Flickr sent, smallest first
+    private List<PhotoVariant> mVariants = new ArrayList<>();
+
     @Override
     public String toString(){
         return mCaption;
     }
 
+    public String getCaption() {
+        return mCaption;
+    }
+
     public void setCaption(String caption) {
         mCaption = caption;
     }
 
     public String getId() {
+        return Long.toString(mId);
+    }
+
+    //flickr photo ids are always numeric
+    public void setId(String id) throws NumberFormatException {
+        mId = Long.parseLong(id);
+    }
+
+    public long getIdAsLong() {
         return mId;
     }
 
-    public void setId(String id) {
+    public void setId(long id) {
         mId = id;
     }
 
@@ -56,11 +80,48 @@ public class GalleryItem {
         mOwner = owner;
     }
 
+    public int getFarm() {
+        return mFarm;
+    }
+
+    public void setFarm(int farm) {
+        mFarm = farm;
+    }
+
+    public String getServer() {
+        return mServer;
+    }
+
+    public void setServer(String server) {
+        mServer = server;
+    }
+
+    public String getSecret() {
+        return mSecret;
+    }
+
+    public void setSecret(String secret) {
+        mSecret = secret;
+    }
+
+    public List<PhotoVariant> getVariants() {
+        return mVariants;
+    }
+
+    public void addVariant(PhotoVariant variant){
+        int i = 0;
+        while(i < mVariants.size() && area(mVariants.get(i)) <= area(variant)){
+            i++;
+        }
+        mVariants.add(i, variant);
+    }
+
+    private static long area(PhotoVariant variant){
+        return (long) variant.getWidth() * variant.getHeight();
+    }
+
+    //owner ids only hold [0-9A-Za-z@], so plain concatenation is a valid path
     public Uri getPhotoPageUri(){
-        return Uri.parse("https://www.flickr.com/photos/")
-                .buildUpon()
-                .appendPath(mOwner)
-                .appendPath(mId)
-                .build();
+        return Uri.parse("https://www.flickr.com/photos/" + mOwner + "/" + mId);
     }
 }
@@ -0,0 +1,162 @@
+package com.cmcinnis.craig.photogallery;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single pass parser for Flickr photo list responses.
+ *
+ * Reads GalleryItems straight off the response stream, so the document is
+ * never held in memory as a whole, and drops photos without a url_s as it goes.
+ * Every url_x/width_x/height_x size extra in the response becomes a PhotoVariant.
+ */
+public class GalleryItemParser {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Metrics.Counter ITEMS_PARSED = Metrics.counter("parse.items");
+
+    public static List<GalleryItem> parse(InputStream in) throws IOException{
+        //reads off the network as it goes, so this includes the body download
+        boolean traced = Metrics.beginSection("GalleryItemParser.parse");
+        JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+        try{
+            List<GalleryItem> items = readResponse(reader);
+            ITEMS_PARSED.add(items.size());
+            return items;
+        }catch (IllegalStateException ise){
+            //JsonReader reports an unexpected token type this way
+            throw new IOException("Unexpected Flickr response", ise);
+        }finally {
+            reader.close();
+            Metrics.endSection(traced);
+        }
+    }
+
+    private static List<GalleryItem> readResponse(JsonReader reader) throws IOException{
+        List<GalleryItem> items = new ArrayList<>();
+        String stat = null;
+        String message = null;
+
+        reader.beginObject();
+        while(reader.hasNext()){
+            String name = reader.nextName();
+            if(name.equals("photos")){
+                readPhotos(reader, items);
+            }else if(name.equals("stat")){
+                stat = reader.nextString();
+            }else if(name.equals("message")){
+                message = reader.nextString();
+            }else{
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if("fail".equals(stat)){
+            throw new IOException("Flickr request failed: " + message);
+        }
+        return items;
+    }
+
+    private static void readPhotos(JsonReader reader, List<GalleryItem> items) throws IOException{
+        reader.beginObject();
+        while(reader.hasNext()){
+            if(reader.nextName().equals("photo")){
+                reader.beginArray();
+                while(reader.hasNext()){
+                    GalleryItem item = readPhoto(reader);
+                    if(item != null && item.getUrl() != null){
+                        items.add(item);
+                    }
+                }
+                reader.endArray();
+            }else{
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static GalleryItem readPhoto(JsonReader reader) throws IOException{
+        GalleryItem item = new GalleryItem();
+        //the size fields can come in any order, collect them before building variants
+        int sizeCount = PhotoVariant.SUFFIXES.length;
+        String[] urls = new String[sizeCount];
+        int[] widths = new int[sizeCount];
+        int[] heights = new int[sizeCount];
+        boolean validId = true;
+
+        reader.beginObject();
+        while(reader.hasNext()){
+            String name = reader.nextName();
+            if(reader.peek() == JsonToken.NULL){
+                reader.skipValue();
+            }else if(name.equals("id")){
+                try{
+                    item.setId(reader.nextString());
+                }catch (NumberFormatException nfe){
+                    //not a flickr photo id, the item is dropped below
+                    validId = false;
+                }
+            }else if(name.equals("title")){
+                item.setCaption(reader.nextString());
+            }else if(name.equals("owner")){
+                item.setOwner(reader.nextString());
+            }else if(name.equals("server")){
+                item.setServer(reader.nextString());
+            }else if(name.equals("secret")){
+                item.setSecret(reader.nextString());
+            }else if(name.equals("farm")){
+                item.setFarm(readInt(reader));
+            }else if(name.startsWith("url_") && sizeIndex(name, 4) >= 0){
+                urls[sizeIndex(name, 4)] = reader.nextString();
+            }else if(name.startsWith("width_") && sizeIndex(name, 6) >= 0){
+                widths[sizeIndex(name, 6)] = readInt(reader);
+            }else if(name.startsWith("height_") && sizeIndex(name, 7) >= 0){
+                heights[sizeIndex(name, 7)] = readInt(reader);
+            }else{
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        for(int i = 0; i < sizeCount; i++){
+            if(urls[i] != null){
+                item.addVariant(new PhotoVariant(PhotoVariant.SUFFIXES[i], urls[i],
+                        widths[i], heights[i]));
+            }
+        }
+        //url_s stays the default rendition and the item's identity in the caches
+        item.setUrl(urls[sizeIndex("url_s", 4)]);
+
+        return validId ? item : null;
+    }
+
+    //position of the size suffix after prefixLength in PhotoVariant.SUFFIXES, or -1
+    private static int sizeIndex(String name, int prefixLength){
+        String suffix = name.substring(prefixLength);
+        for(int i = 0; i < PhotoVariant.SUFFIXES.length; i++){
+            if(PhotoVariant.SUFFIXES[i].equals(suffix)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //flickr sends sizes and farms as numbers or as numeric strings depending on the method
+    private static int readInt(JsonReader reader) throws IOException{
+        String value = reader.nextString();
+        try{
+            return Integer.parseInt(value);
+        }catch (NumberFormatException nfe){
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package com.cmcinnis.craig.photogallery;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Immutable list of the loaded gallery items, kept as one compact Page per
+ * result page instead of one GalleryItem object per photo.
+ *
+ * Ids are longs, owners are indexes into the page's own owner table and image
+ * urls are rebuilt from server/secret/farm, so a photo costs a few dozen bytes
+ * plus its title.
+ * A page can also be dropped down to just its ids, which keeps positions and
+ * stable ids intact while the rest is reloaded on demand. get() returns null
+ * for positions on a dropped page.
+ *
+ * Changes return a new store that shares the untouched pages, so a snapshot is
+ * just a reference. Every id is in the store once: a page that repeats a photo
+ * already in the store, as the shifting recent feed does, comes in without it,
+ * so ids stay usable as stable ids.
+ */
+public class GalleryItemStore extends AbstractList<GalleryItem> implements RandomAccess {
+    public static final GalleryItemStore EMPTY = new GalleryItemStore(new Page[0]);
+
+    //object and array overheads for size estimates, as on a 32 bit ART heap
+    private static final int OBJECT_BYTES = 16;
+    private static final int ARRAY_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+
+    private final Page[] mPages;
+    //first position of each page
+    private final int[] mStarts;
+    private final int mSize;
+    private volatile long mSizeInBytes = -1;
+
+    private GalleryItemStore(Page[] pages){
+        mPages = pages;
+        mStarts = new int[pages.length];
+        int size = 0;
+        for(int i = 0; i < pages.length; i++){
+            mStarts[i] = size;
+            size += pages[i].size();
+        }
+        mSize = size;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    //a fresh GalleryItem built from the packed fields, or null on a dropped page
+    @Override
+    public GalleryItem get(int position) {
+        int index = pageIndexOf(position);
+        return mPages[index].getItem(position - mStarts[index]);
+    }
+
+    public long getId(int position){
+        int index = pageIndexOf(position);
+        return mPages[index].mIds[position - mStarts[index]];
+    }
+
+    public boolean isResident(int position){
+        return mPages[pageIndexOf(position)].isResident();
+    }
+
+    public int getPageNumber(int position){
+        return mPages[pageIndexOf(position)].mPageNumber;
+    }
+
+    //rough heap cost of the pages, counted once and then remembered
+    public long getSizeInBytes(){
+        if(mSizeInBytes < 0){
+            long bytes = ARRAY_BYTES * 2 + mPages.length * (REFERENCE_BYTES + 4);
+            for(Page page : mPages){
+                bytes += page.getSizeInBytes();
+            }
+            mSizeInBytes = bytes;
+        }
+        return mSizeInBytes;
+    }
+
+    public int getPageCount(){
+        return mPages.length;
+    }
+
+    public Page getPage(int index){
+        return mPages[index];
+    }
+
+    //position of the page's first item, or -1 if the page is not in the store
+    public int startOf(int pageNumber){
+        int index = indexOfPage(pageNumber);
+        return index < 0 ? -1 : mStarts[index];
+    }
+
+    public int indexOfId(long id){
+        for(int i = 0; i < mPages.length; i++){
+            long[] ids = mPages[i].mIds;
+            for(int j = 0; j < ids.length; j++){
+                if(ids[j] == id){
+                    return mStarts[i] + j;
+                }
+            }
+        }
+        return -1;
+    }
+
+    //whether the two positions would draw the same cell
+    public boolean sameContents(int position, GalleryItemStore other, int otherPosition){
+        int index = pageIndexOf(position);
+        int otherIndex = other.pageIndexOf(otherPosition);
+        return mPages[index].sameContents(position - mStarts[index],
+                other.mPages[otherIndex], otherPosition - other.mStarts[otherIndex]);
+    }
+
+    //adds the page minus any photo already in the store
+    public GalleryItemStore append(Page page){
+        Page[] pages = Arrays.copyOf(mPages, mPages.length + 1);
+        pages[mPages.length] = withoutRepeats(page, -1);
+        return new GalleryItemStore(pages);
+    }
+
+    //swaps in a page with the same page number, minus any photo on another page
+    public GalleryItemStore replace(Page page){
+        int index = indexOfPage(page.mPageNumber);
+        if(index < 0){
+            throw new IllegalArgumentException("No page " + page.mPageNumber);
+        }
+        Page[] pages = mPages.clone();
+        pages[index] = withoutRepeats(page, index);
+        return new GalleryItemStore(pages);
+    }
+
+    //index of the page for getPage(), or -1
+    public int indexOfPage(int pageNumber){
+        for(int i = 0; i < mPages.length; i++){
+            if(mPages[i].mPageNumber == pageNumber){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //page without ids repeated within it or found on any page but skipIndex
+    private Page withoutRepeats(Page page, int skipIndex){
+        long[] ids = page.mIds;
+        Set<Long> seen = new HashSet<>(ids.length * 2);
+        boolean[] repeated = null;
+        for(int i = 0; i < ids.length; i++){
+            if(!seen.add(ids[i])){
+                repeated = markRepeated(repeated, ids.length, i);
+            }
+        }
+
+        //one pass over the store, checked against the new page's few ids
+        for(int p = 0; p < mPages.length; p++){
+            if(p == skipIndex){
+                continue;
+            }
+            for(long id : mPages[p].mIds){
+                if(seen.contains(id)){
+                    for(int i = 0; i < ids.length; i++){
+                        if(ids[i] == id){
+                            repeated = markRepeated(repeated, ids.length, i);
+                        }
+                    }
+                }
+            }
+        }
+        return repeated == null ? page : page.without(repeated);
+    }
+
+    private static boolean[] markRepeated(boolean[] repeated, int size, int i){
+        if(repeated == null){
+            repeated = new boolean[size];
+        }
+        repeated[i] = true;
+        return repeated;
+    }
+
+    private int pageIndexOf(int position){
+        if(position < 0 || position >= mSize){
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + mSize);
+        }
+        int index = Arrays.binarySearch(mStarts, position);
+        if(index < 0){
+            index = -index - 2;
+        }
+        //step past empty pages that share the start
+        while(index + 1 < mStarts.length && mStarts[index + 1] == position){
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * One result page in columns. A dropped page keeps only mIds.
+     */
+    public static final class Page {
+        private static final String LIVE_HOST = "https://live.staticflickr.com/";
+        //file name suffix for each of PhotoVariant.SUFFIXES
+        private static final String[] URL_SUFFIXES = { "_t", "_q", "_m", "" };
+        private static final int SIZES = PhotoVariant.SUFFIXES.length;
+        private static final int DEFAULT_SIZE = sizeIndex("s");
+        private static final int SECRET_LENGTH = 10;
+
+        final int mPageNumber;
+        final long[] mIds;
+        private final String[] mCaptions;
+        //each owner once per page, mOwners index into it and -1 is no owner
+        private final String[] mOwnerTable;
+        private final short[] mOwners;
+        private final int[] mServers;
+        private final long[] mSecrets;
+        //0 for live.staticflickr.com, otherwise the farmN host the urls use
+        private final byte[] mFarms;
+        //bit k set when PhotoVariant.SUFFIXES[k] exists
+        private final byte[] mSizeMasks;
+        private final short[] mWidths;
+        private final short[] mHeights;
+        //only for the rare photo whose urls do not follow the pattern, default url last
+        private final String[][] mRawUrls;
+
+        private Page(int pageNumber, long[] ids, String[] captions, String[] ownerTable,
+                     short[] owners, int[] servers, long[] secrets, byte[] farms,
+                     byte[] sizeMasks, short[] widths, short[] heights, String[][] rawUrls){
+            mPageNumber = pageNumber;
+            mIds = ids;
+            mCaptions = captions;
+            mOwnerTable = ownerTable;
+            mOwners = owners;
+            mServers = servers;
+            mSecrets = secrets;
+            mFarms = farms;
+            mSizeMasks = sizeMasks;
+            mWidths = widths;
+            mHeights = heights;
+            mRawUrls = rawUrls;
+        }
+
+        public static Page of(int pageNumber, List<GalleryItem> items){
+            int n = items.size();
+            long[] ids = new long[n];
+            String[] captions = new String[n];
+            Map<String, Integer> ownerCodes = new HashMap<>();
+            short[] owners = new short[n];
+            int[] servers = new int[n];
+            long[] secrets = new long[n];
+            byte[] farms = new byte[n];
+            byte[] sizeMasks = new byte[n];
+            short[] widths = new short[n * SIZES];
+            short[] heights = new short[n * SIZES];
+            String[][] rawUrls = null;
+
+            for(int i = 0; i < n; i++){
+                GalleryItem item = items.get(i);
+                ids[i] = item.getIdAsLong();
+                captions[i] = item.getCaption() == null || item.getCaption().isEmpty()
+                        ? "" : item.getCaption();
+                owners[i] = (short) ownerCode(ownerCodes, item.getOwner());
+
+                String[] urls = new String[SIZES + 1];
+                for(PhotoVariant variant : item.getVariants()){
+                    int k = sizeIndex(variant.getSuffix());
+                    if(k < 0){
+                        continue;
+                    }
+                    sizeMasks[i] |= 1 << k;
+                    widths[i * SIZES + k] = (short) variant.getWidth();
+                    heights[i * SIZES + k] = (short) variant.getHeight();
+                    urls[k] = variant.getUrl();
+                }
+                urls[SIZES] = item.getUrl();
+
+                int host = packUrlParts(item, i, servers, secrets)
+                        ? matchingHost(ids[i], servers[i], secrets[i], item.getFarm(),
+                                sizeMasks[i], urls)
+                        : -1;
+                if(host >= 0){
+                    farms[i] = (byte) host;
+                }else{
+                    if(rawUrls == null){
+                        rawUrls = new String[n][];
+                    }
+                    rawUrls[i] = urls;
+                }
+            }
+
+            String[] ownerTable = new String[ownerCodes.size()];
+            for(Map.Entry<String, Integer> entry : ownerCodes.entrySet()){
+                ownerTable[entry.getValue()] = entry.getKey();
+            }
+            return new Page(pageNumber, ids, captions, ownerTable, owners, servers, secrets,
+                    farms, sizeMasks, widths, heights, rawUrls);
+        }
+
+        private static int ownerCode(Map<String, Integer> codes, String owner){
+            if(owner == null){
+                return -1;
+            }
+            Integer code = codes.get(owner);
+            if(code == null){
+                code = codes.size();
+                codes.put(owner, code);
+            }
+            return code;
+        }
+
+        public int getPageNumber(){
+            return mPageNumber;
+        }
+
+        public int size(){
+            return mIds.length;
+        }
+
+        public boolean isResident(){
+            return mCaptions != null;
+        }
+
+        //rough heap cost of the page, see GalleryItemStore.getSizeInBytes()
+        long getSizeInBytes(){
+            int n = mIds.length;
+            long bytes = OBJECT_BYTES + ARRAY_BYTES + n * 8;
+            if(!isResident()){
+                return bytes;
+            }
+
+            bytes += ARRAY_BYTES * 10 + n * (REFERENCE_BYTES + 2 + 4 + 8 + 1 + 1 + SIZES * 4)
+                    + mOwnerTable.length * REFERENCE_BYTES;
+            for(String owner : mOwnerTable){
+                bytes += OBJECT_BYTES + ARRAY_BYTES + owner.length() * 2;
+            }
+            for(String caption : mCaptions){
+                //missing captions all share the one empty string
+                if(!caption.isEmpty()){
+                    bytes += OBJECT_BYTES + ARRAY_BYTES + caption.length() * 2;
+                }
+            }
+            if(mRawUrls != null){
+                bytes += ARRAY_BYTES + n * REFERENCE_BYTES;
+                for(String[] urls : mRawUrls){
+                    if(urls == null){
+                        continue;
+                    }
+                    bytes += ARRAY_BYTES + urls.length * REFERENCE_BYTES;
+                    for(String url : urls){
+                        bytes += url == null ? 0 : OBJECT_BYTES + ARRAY_BYTES + url.length() * 2;
+                    }
+                }
+            }
+            return bytes;
+        }
+
+        //the same page without the photos marked in skip
+        Page without(boolean[] skip){
+            int n = 0;
+            for(boolean s : skip){
+                if(!s){
+                    n++;
+                }
+            }
+            long[] ids = new long[n];
+            for(int i = 0, j = 0; i < skip.length; i++){
+                if(!skip[i]){
+                    ids[j++] = mIds[i];
+                }
+            }
+            if(!isResident()){
+                return new Page(mPageNumber, ids, null, null, null, null, null, null, null,
+                        null, null, null);
+            }
+
+            String[] captions = new String[n];
+            short[] owners = new short[n];
+            int[] servers = new int[n];
+            long[] secrets = new long[n];
+            byte[] farms = new byte[n];
+            byte[] sizeMasks = new byte[n];
+            short[] widths = new short[n * SIZES];
+            short[] heights = new short[n * SIZES];
+            String[][] rawUrls = mRawUrls == null ? null : new String[n][];
+            for(int i = 0, j = 0; i < skip.length; i++){
+                if(skip[i]){
+                    continue;
+                }
+                captions[j] = mCaptions[i];
+                owners[j] = mOwners[i];
+                servers[j] = mServers[i];
+                secrets[j] = mSecrets[i];
+                farms[j] = mFarms[i];
+                sizeMasks[j] = mSizeMasks[i];
+                System.arraycopy(mWidths, i * SIZES, widths, j * SIZES, SIZES);
+                System.arraycopy(mHeights, i * SIZES, heights, j * SIZES, SIZES);
+                if(rawUrls != null){
+                    rawUrls[j] = mRawUrls[i];
+                }
+                j++;
+            }
+            //the table may keep an owner no photo uses any more, it is small
+            return new Page(mPageNumber, ids, captions, mOwnerTable, owners, servers, secrets,
+                    farms, sizeMasks, widths, heights, rawUrls);
+        }
+
+        //the same page with everything but the ids let go
+        public Page drop(){
+            if(!isResident()){
+                return this;
+            }
+            return new Page(mPageNumber, mIds, null, null, null, null, null, null, null, null,
+                    null, null);
+        }
+
+        GalleryItem getItem(int i){
+            if(!isResident()){
+                return null;
+            }
+
+            GalleryItem item = new GalleryItem();
+            item.setId(mIds[i]);
+            item.setCaption(mCaptions[i]);
+            item.setOwner(mOwners[i] < 0 ? null : mOwnerTable[mOwners[i]]);
+            item.setFarm(mFarms[i]);
+            item.setServer(Integer.toString(mServers[i]));
+            item.setSecret(secretString(mSecrets[i]));
+            for(int k = 0; k < SIZES; k++){
+                if((mSizeMasks[i] & (1 << k)) != 0){
+                    item.addVariant(new PhotoVariant(PhotoVariant.SUFFIXES[k], urlFor(i, k),
+                            mWidths[i * SIZES + k], mHeights[i * SIZES + k]));
+                }
+            }
+            item.setUrl(urlFor(i, SIZES));
+            return item;
+        }
+
+        boolean sameContents(int i, Page other, int j){
+            if(isResident() != other.isResident()){
+                return false;
+            }
+            if(!isResident()){
+                return mIds[i] == other.mIds[j];
+            }
+            return mCaptions[i].equals(other.mCaptions[j])
+                    && mServers[i] == other.mServers[j]
+                    && mSecrets[i] == other.mSecrets[j]
+                    && mFarms[i] == other.mFarms[j]
+                    && mSizeMasks[i] == other.mSizeMasks[j]
+                    && Arrays.equals(rawUrls(i), other.rawUrls(j));
+        }
+
+        private String[] rawUrls(int i){
+            return mRawUrls == null ? null : mRawUrls[i];
+        }
+
+        //size k of item i, SIZES for the default url
+        private String urlFor(int i, int k){
+            if(mRawUrls != null && mRawUrls[i] != null){
+                return mRawUrls[i][k];
+            }
+            if(k == SIZES){
+                k = DEFAULT_SIZE;
+            }
+            if((mSizeMasks[i] & (1 << k)) == 0){
+                return null;
+            }
+            return buildUrl(mIds[i], mServers[i], mSecrets[i], mFarms[i], k);
+        }
+
+        private static int sizeIndex(String suffix){
+            for(int k = 0; k < PhotoVariant.SUFFIXES.length; k++){
+                if(PhotoVariant.SUFFIXES[k].equals(suffix)){
+                    return k;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean packUrlParts(GalleryItem item, int i, int[] servers,
+                                            long[] secrets){
+            String server = item.getServer();
+            String secret = item.getSecret();
+            if(server == null || secret == null || secret.length() != SECRET_LENGTH
+                    || item.getFarm() < 0 || item.getFarm() > Byte.MAX_VALUE){
+                return false;
+            }
+            try{
+                servers[i] = Integer.parseInt(server);
+                secrets[i] = Long.parseLong(secret, 16);
+            }catch (NumberFormatException nfe){
+                return false;
+            }
+            return true;
+        }
+
+        //the host byte (0 for live, else the farm) every url was built with, or -1
+        private static int matchingHost(long id, int server, long secret, int farm,
+                                        byte sizeMask, String[] urls){
+            int[] hosts = farm == 0 ? new int[]{ 0 } : new int[]{ 0, farm };
+            for(int host : hosts){
+                boolean matches = true;
+                for(int k = 0; k <= SIZES && matches; k++){
+                    int size = k == SIZES ? DEFAULT_SIZE : k;
+                    String expected = (sizeMask & (1 << size)) == 0
+                            ? null : buildUrl(id, server, secret, (byte) host, size);
+                    matches = expected == null ? urls[k] == null : expected.equals(urls[k]);
+                }
+                if(matches){
+                    return host;
+                }
+            }
+            return -1;
+        }
+
+        private static String buildUrl(long id, int server, long secret, byte farm, int k){
+            StringBuilder url = new StringBuilder(72);
+            if(farm == 0){
+                url.append(LIVE_HOST);
+            }else{
+                url.append("https://farm").append(farm).append(".staticflickr.com/");
+            }
+            return url.append(server).append('/')
+                    .append(id).append('_').append(secretString(secret))
+                    .append(URL_SUFFIXES[k]).append(".jpg")
+                    .toString();
+        }
+
+        private static String secretString(long secret){
+            String hex = Long.toHexString(secret);
+            StringBuilder padded = new StringBuilder(SECRET_LENGTH);
+            for(int i = hex.length(); i < SECRET_LENGTH; i++){
+                padded.append('0');
+            }
+            return padded.append(hex).toString();
+        }
+    }
+}
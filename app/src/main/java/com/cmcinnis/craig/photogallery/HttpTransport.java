@@ -0,0 +1,403 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared HTTP client for the app.
+ *
+ * Connections are never disconnect()ed, bodies are always read to the end and
+ * closed, so HttpURLConnection can hand the socket back to its keep-alive pool.
+ * Bodies are requested gzipped, and ETag/Last-Modified validators are
+ * remembered so callers that keep their own copy can make conditional requests.
+ * Callers that outlive the process store getValidators() themselves and pass
+ * them back in.
+ *
+ * Interrupting the calling thread cancels a request: it fails with an
+ * InterruptedIOException at the next read and its connection is dropped.
+ */
+public class HttpTransport {
+    private static final String TAG = "HttpTransport";
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 15 * 1000;
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final int MAX_VALIDATORS = 100;
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private static HttpTransport sHttpTransport;
+
+    private static final Metrics.Counter BYTES_DOWNLOADED = Metrics.counter("http.bytes");
+    private static final Metrics.Histogram TTFB = Metrics.histogram("http.ttfb");
+    private static final Metrics.Histogram TOTAL_TIME = Metrics.histogram("http.total");
+
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+
+    //url -> validators of the last 200 response, eldest dropped first
+    private final Map<String, Validators> mValidators =
+            new LinkedHashMap<String, Validators>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Validators> eldest) {
+                    return size() > MAX_VALIDATORS;
+                }
+            };
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mNotModifiedCount = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mTotalMillis = new AtomicLong();
+
+    public static synchronized HttpTransport get(){
+        if(sHttpTransport == null){
+            //HttpURLConnection reads these when it sets up its connection pool
+            System.setProperty("http.keepAlive", "true");
+            System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+            sHttpTransport = new HttpTransport(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+        }
+        return sHttpTransport;
+    }
+
+    public HttpTransport(int connectTimeoutMs, int readTimeoutMs){
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    //plain GET, the response body is read in full
+    public byte[] getBytes(String urlSpec) throws IOException{
+        Response response = execute(urlSpec, false);
+        try{
+            return response.readBytes();
+        }finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Starts a GET and returns once the status line is in. With conditional set,
+     * remembered validators are sent and a 304 comes back as isNotModified().
+     * The caller must close() the response.
+     */
+    public Response execute(String urlSpec, boolean conditional) throws IOException{
+        Validators validators = null;
+        if(conditional){
+            synchronized (mValidators){
+                validators = mValidators.get(urlSpec);
+            }
+        }
+        return execute(urlSpec, validators);
+    }
+
+    //conditional on the given validators, a plain GET when they are null
+    public Response execute(String urlSpec, Validators validators) throws IOException{
+        throwIfInterrupted(urlSpec);
+        HttpURLConnection connection = (HttpURLConnection) new URL(urlSpec).openConnection();
+        Response response = start(connection, urlSpec, validators);
+        if(response == null){
+            //thrown out here, where a status error does not disconnect the pooled socket
+            throw new IOException(connection.getResponseMessage() + ": with " + urlSpec);
+        }
+        return response;
+    }
+
+    //null for a status other than 200 or 304, whose body has been drained
+    private Response start(HttpURLConnection connection, String urlSpec,
+                           Validators validators) throws IOException{
+        Timing timing = new Timing();
+        long start = System.nanoTime();
+
+        connection.setConnectTimeout(mConnectTimeoutMs);
+        connection.setReadTimeout(mReadTimeoutMs);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        if(validators != null){
+            if(validators.mETag != null){
+                connection.setRequestProperty("If-None-Match", validators.mETag);
+            }
+            if(validators.mLastModified != null){
+                connection.setRequestProperty("If-Modified-Since", validators.mLastModified);
+            }
+        }
+
+        try{
+            connection.connect();
+            long connected = System.nanoTime();
+            timing.mConnectMs = (connected - start) / 1000000;
+
+            int responseCode = connection.getResponseCode();
+            timing.mTtfbMs = (System.nanoTime() - start) / 1000000;
+            mRequestCount.incrementAndGet();
+            throwIfInterrupted(urlSpec);
+
+            if(responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null){
+                mNotModifiedCount.incrementAndGet();
+                drain(connection.getInputStream());
+                return new Response(this, connection, urlSpec, responseCode, null, -1, timing, start);
+            }
+
+            if(responseCode != HttpURLConnection.HTTP_OK){
+                //read the error body so the socket can still be reused
+                drain(connection.getErrorStream());
+                return null;
+            }
+
+            String eTag = connection.getHeaderField("ETag");
+            String lastModified = connection.getHeaderField("Last-Modified");
+            Validators received = null;
+            if(eTag != null || lastModified != null){
+                received = new Validators(eTag, lastModified);
+                synchronized (mValidators){
+                    mValidators.put(urlSpec, received);
+                }
+            }
+
+            InputStream body = connection.getInputStream();
+            int contentLength = connection.getContentLength();
+            if("gzip".equalsIgnoreCase(connection.getContentEncoding())){
+                body = new GZIPInputStream(body);
+                //the header counts compressed bytes, only good as a lower bound
+                contentLength = -1;
+            }
+            Response response = new Response(this, connection, urlSpec, responseCode, body,
+                    contentLength, timing, start);
+            response.mValidators = received;
+            return response;
+        }catch (IOException ioe){
+            //a broken connection must not go back into the pool
+            connection.disconnect();
+            throw ioe;
+        }
+    }
+
+    public long getRequestCount(){
+        return mRequestCount.get();
+    }
+
+    public long getNotModifiedCount(){
+        return mNotModifiedCount.get();
+    }
+
+    @Override
+    public String toString(){
+        long requests = mRequestCount.get();
+        return "HttpTransport[requests=" + requests
+                + ",notModified=" + mNotModifiedCount.get()
+                + ",bytesRead=" + mBytesRead.get()
+                + ",meanTotalMs=" + (requests == 0 ? 0 : mTotalMillis.get() / requests) + "]";
+    }
+
+    private void onResponseClosed(Response response){
+        mBytesRead.addAndGet(response.mBytesRead);
+        mTotalMillis.addAndGet(response.mTiming.mTotalMs);
+        BYTES_DOWNLOADED.add(response.mBytesRead);
+        TTFB.record(response.mTiming.mTtfbMs * 1000);
+        TOTAL_TIME.record(response.mTiming.mTotalMs * 1000);
+        Log.d(TAG, response.mUrl + " " + response.mTiming);
+    }
+
+    private static void throwIfInterrupted(String urlSpec) throws InterruptedIOException{
+        if(Thread.currentThread().isInterrupted()){
+            throw new InterruptedIOException("Cancelled " + urlSpec);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException{
+        if(in == null){
+            return;
+        }
+        try{
+            //usually the body was read to the end already, skip the buffer then
+            if(in.read() < 0){
+                return;
+            }
+            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+            while(in.read(buffer) > 0){
+                //discard
+            }
+        }finally {
+            in.close();
+        }
+    }
+
+    //what a 200 response said about its version, either may be null
+    public static class Validators {
+        final String mETag;
+        final String mLastModified;
+
+        public Validators(String eTag, String lastModified){
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        public String getETag(){
+            return mETag;
+        }
+
+        public String getLastModified(){
+            return mLastModified;
+        }
+    }
+
+    //wall clock milliseconds for each phase of one request. connect covers the
+    //dns lookup and handshakes of a new connection, and is near 0 for a pooled one
+    public static class Timing {
+        long mConnectMs;
+        long mTtfbMs;
+        long mTotalMs;
+
+        public long getConnectMs(){
+            return mConnectMs;
+        }
+
+        public long getTtfbMs(){
+            return mTtfbMs;
+        }
+
+        public long getTotalMs(){
+            return mTotalMs;
+        }
+
+        @Override
+        public String toString(){
+            return "connect=" + mConnectMs + "ms ttfb=" + mTtfbMs
+                    + "ms total=" + mTotalMs + "ms";
+        }
+    }
+
+    public static class Response implements Closeable {
+        private final HttpTransport mTransport;
+        private final HttpURLConnection mConnection;
+        private final String mUrl;
+        private final int mResponseCode;
+        private final InputStream mBody;
+        private final int mContentLength;
+        private final Timing mTiming;
+        private final long mStartNanos;
+        private long mBytesRead = 0;
+        private boolean mClosed = false;
+        private Validators mValidators;
+
+        Response(HttpTransport transport, HttpURLConnection connection, String url,
+                 int responseCode, InputStream body, int contentLength, Timing timing,
+                 long startNanos){
+            mTransport = transport;
+            mConnection = connection;
+            mUrl = url;
+            mResponseCode = responseCode;
+            mBody = body;
+            mContentLength = contentLength;
+            mTiming = timing;
+            mStartNanos = startNanos;
+        }
+
+        public boolean isNotModified(){
+            return mResponseCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        //validators of a 200 response, null if it had none
+        public Validators getValidators(){
+            return mValidators;
+        }
+
+        //decoded body length, or -1 when the server did not say
+        public int getContentLength(){
+            return mContentLength;
+        }
+
+        public Timing getTiming(){
+            return mTiming;
+        }
+
+        //the decoded body, counted as it is read
+        public InputStream getInputStream(){
+            if(mBody == null){
+                throw new IllegalStateException("No body for a 304 response");
+            }
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throwIfInterrupted(mUrl);
+                    int b = mBody.read();
+                    if(b >= 0){
+                        mBytesRead++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    throwIfInterrupted(mUrl);
+                    int bytesRead = mBody.read(buffer, offset, length);
+                    if(bytesRead > 0){
+                        mBytesRead += bytesRead;
+                    }
+                    return bytesRead;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    Response.this.close();
+                }
+            };
+        }
+
+        //reads the whole body into an array sized from Content-Length when known
+        public byte[] readBytes() throws IOException{
+            InputStream in = getInputStream();
+            if(mContentLength >= 0){
+                byte[] bytes = new byte[mContentLength];
+                int offset = 0;
+                int bytesRead;
+                while(offset < bytes.length
+                        && (bytesRead = in.read(bytes, offset, bytes.length - offset)) > 0){
+                    offset += bytesRead;
+                }
+                if(offset != bytes.length){
+                    throw new IOException("Expected " + mContentLength + " bytes but got "
+                            + offset + " from " + mUrl);
+                }
+                return bytes;
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(DEFAULT_BUFFER_SIZE);
+            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+            int bytesRead;
+            while((bytesRead = in.read(buffer)) > 0){
+                out.write(buffer, 0, bytesRead);
+            }
+            return out.toByteArray();
+        }
+
+        //finishes the body so the connection goes back to the keep-alive pool
+        @Override
+        public void close() throws IOException{
+            if(mClosed){
+                return;
+            }
+            mClosed = true;
+
+            try{
+                if(Thread.currentThread().isInterrupted()){
+                    //not worth reading the rest of a cancelled body
+                    mConnection.disconnect();
+                }else{
+                    drain(mBody);
+                }
+            }finally {
+                mTiming.mTotalMs = (System.nanoTime() - mStartNanos) / 1000000;
+                mTransport.onResponseClosed(this);
+            }
+        }
+    }
+}
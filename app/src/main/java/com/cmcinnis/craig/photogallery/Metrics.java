@@ -0,0 +1,281 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.os.Trace;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters, latency histograms and systrace sections for the
+ * gallery pipeline.
+ *
+ * Counters and histograms are registered once, usually into static fields,
+ * and updated without locks. While disabled every call returns after one
+ * volatile read, so this stays on in release builds. Read it with
+ * `adb shell dumpsys activity com.cmcinnis.craig.photogallery/.PhotoGalleryActivity`,
+ * see PhotoGalleryActivity.dump() for the options.
+ */
+public class Metrics {
+    private static volatile boolean sEnabled = true;
+
+    private static final Map<String, Counter> sCounters = new TreeMap<>();
+    private static final Map<String, Histogram> sHistograms = new TreeMap<>();
+
+    public static synchronized Counter counter(String name){
+        Counter counter = sCounters.get(name);
+        if(counter == null){
+            counter = new Counter();
+            sCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    //a histogram of durations, recorded in microseconds
+    public static Histogram histogram(String name){
+        return histogram(name, Histogram.MICROS);
+    }
+
+    //a histogram of plain values such as sizes or queue depths
+    public static Histogram valueHistogram(String name){
+        return histogram(name, Histogram.VALUES);
+    }
+
+    private static synchronized Histogram histogram(String name, String unit){
+        Histogram histogram = sHistograms.get(name);
+        if(histogram == null){
+            histogram = new Histogram(unit);
+            sHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    public static boolean isEnabled(){
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled){
+        sEnabled = enabled;
+    }
+
+    /**
+     * Opens a systrace section. Pass the result to endSection() on the same
+     * thread, so a section is never left open when metrics get switched off.
+     */
+    public static boolean beginSection(String name){
+        if(!sEnabled){
+            return false;
+        }
+        Trace.beginSection(name);
+        return true;
+    }
+
+    public static void endSection(boolean begun){
+        if(begun){
+            Trace.endSection();
+        }
+    }
+
+    //start time for Histogram.recordSince(), 0 while disabled
+    public static long startTimer(){
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    public static synchronized void reset(){
+        for(Counter counter : sCounters.values()){
+            counter.mValue.set(0);
+        }
+        for(Histogram histogram : sHistograms.values()){
+            histogram.reset();
+        }
+    }
+
+    public static synchronized void dump(String prefix, PrintWriter writer){
+        writer.print(prefix);
+        writer.println("Metrics" + (sEnabled ? "" : " (disabled)"));
+        for(Map.Entry<String, Counter> entry : sCounters.entrySet()){
+            writer.print(prefix);
+            writer.println("  " + entry.getKey() + "=" + entry.getValue().get());
+        }
+        for(Map.Entry<String, Histogram> entry : sHistograms.entrySet()){
+            writer.print(prefix);
+            writer.println("  " + entry.getKey() + " " + entry.getValue());
+        }
+    }
+
+    //the same numbers as dump(), as one JSON object
+    public static synchronized void writeJson(Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("enabled").value(sEnabled);
+        writer.name("counters").beginObject();
+        for(Map.Entry<String, Counter> entry : sCounters.entrySet()){
+            writer.name(entry.getKey()).value(entry.getValue().get());
+        }
+        writer.endObject();
+        writer.name("histograms").beginObject();
+        for(Map.Entry<String, Histogram> entry : sHistograms.entrySet()){
+            Histogram histogram = entry.getValue();
+            writer.name(entry.getKey()).beginObject()
+                    .name("unit").value(histogram.mUnit)
+                    .name("count").value(histogram.getCount())
+                    .name("mean").value(histogram.getMean())
+                    .name("p50").value(histogram.getPercentile(50))
+                    .name("p90").value(histogram.getPercentile(90))
+                    .name("p99").value(histogram.getPercentile(99))
+                    .name("max").value(histogram.getMax())
+                    .endObject();
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.flush();
+    }
+
+    public static final class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment(){
+            if(sEnabled){
+                mValue.incrementAndGet();
+            }
+        }
+
+        public void add(long delta){
+            if(sEnabled){
+                mValue.addAndGet(delta);
+            }
+        }
+
+        public long get(){
+            return mValue.get();
+        }
+    }
+
+    /**
+     * Log-linear buckets in the style of HdrHistogram: exact below 32, then
+     * 16 buckets per power of two, so any percentile is within about 6% of
+     * the true value and recording is one array increment.
+     */
+    public static final class Histogram {
+        static final String MICROS = "us";
+        static final String VALUES = "count";
+
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+        private static final int BUCKETS =
+                LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotal = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+        private final String mUnit;
+
+        private Histogram(String unit){
+            mUnit = unit;
+        }
+
+        public void record(long value){
+            if(!sEnabled){
+                return;
+            }
+            if(value < 0){
+                value = 0;
+            }
+            mBuckets.incrementAndGet(bucketOf(value));
+            mCount.incrementAndGet();
+            mTotal.addAndGet(value);
+            long max;
+            while(value > (max = mMax.get())){
+                if(mMax.compareAndSet(max, value)){
+                    break;
+                }
+            }
+        }
+
+        //records the time since a Metrics.startTimer() value
+        public void recordSince(long startNanos){
+            if(startNanos != 0){
+                record((System.nanoTime() - startNanos) / 1000);
+            }
+        }
+
+        public long getCount(){
+            return mCount.get();
+        }
+
+        public long getMax(){
+            return mMax.get();
+        }
+
+        public long getMean(){
+            long count = mCount.get();
+            return count == 0 ? 0 : mTotal.get() / count;
+        }
+
+        //upper bound of the bucket holding the given percentile
+        public long getPercentile(double percentile){
+            long count = mCount.get();
+            if(count == 0){
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i++){
+                seen += mBuckets.get(i);
+                if(seen >= Math.max(rank, 1)){
+                    return Math.min(upperBoundOf(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        void reset(){
+            for(int i = 0; i < BUCKETS; i++){
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mTotal.set(0);
+            mMax.set(0);
+        }
+
+        @Override
+        public String toString(){
+            if(VALUES.equals(mUnit)){
+                return String.format(Locale.US, "n=%d mean=%d p50=%d p90=%d p99=%d max=%d",
+                        getCount(), getMean(), getPercentile(50), getPercentile(90),
+                        getPercentile(99), getMax());
+            }
+            return String.format(Locale.US,
+                    "n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                    getCount(), getMean() / 1000.0, getPercentile(50) / 1000.0,
+                    getPercentile(90) / 1000.0, getPercentile(99) / 1000.0, getMax() / 1000.0);
+        }
+
+        static int bucketOf(long value){
+            if(value < LINEAR_LIMIT){
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long upperBoundOf(int bucket){
+            if(bucket < LINEAR_LIMIT){
+                return bucket;
+            }
+            int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+            long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+}
@@ -0,0 +1,599 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads result pages for the current query and keeps them, in page order, in
+ * one GalleryItemStore the grid adapter reads from.
+ *
+ * At most one request runs per page, a page that finishes early waits until
+ * the pages before it are in, and changing the query cancels everything that
+ * belonged to the old one. Pages far from where the user is looking are
+ * dropped to their ids and reloaded from the PhotoIndex when scrolled back to.
+ * A query can also be previewed from the index alone while the user is still
+ * typing it, or searched for without being remembered: a searchQuery() stays
+ * out of the index and the completions until setQuery() keeps it.
+ *
+ * The last few queries the user moved away from are parked, pages and scroll
+ * position included, in an LRU cache sized to a share of the heap. Switching
+ * back to one shows it as it was and revalidates its pages in the background.
+ * All state is touched on the main thread only, apart from the unsaved pages of
+ * a searchQuery() which are handed over under their own lock.
+ */
+public class PageLoader implements ComponentCallbacks2 {
+    private static final String TAG = "PageLoader";
+    private static final int LOADER_THREADS = 2;
+    //pages kept in full on either side of the one on screen
+    private static final int RETAINED_PAGES = 5;
+    //share of the heap class given to parked query sessions
+    private static final int HEAP_FRACTION = 64;
+    //parked sessions kept however small they are
+    private static final int MAX_SESSIONS = 8;
+    private static final String RECENT_SESSION_KEY = "\u0000recent";
+
+    private static PageLoader sPageLoader;
+
+    private final PhotoIndex mPhotoIndex;
+    private final FlickrFetcher mFlickrFetcher;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(LOADER_THREADS);
+
+    //searches with a stored first page, for completing what the user types
+    private final QueryTrie mQueryTrie = new QueryTrie();
+    //queries the user moved away from, by keyFor(query)
+    private final LruCache<String, QueryState> mSessions;
+
+    private Listener mListener;
+    private QueryState mState = new QueryState(null, 0, false, false);
+    private int mGeneration = 0;
+    //bumped by every preview or query change, stale previews are dropped
+    private int mPreviewRequest = 0;
+
+    public interface Listener {
+        void onItemsReset();
+        void onItemsInserted(int positionStart, int itemCount);
+        void onItemsReplaced(int positionStart, int oldItemCount, int newItemCount);
+        void onLoadingChanged(boolean loading);
+    }
+
+    public static synchronized PageLoader get(Context context){
+        if(sPageLoader == null){
+            ActivityManager activityManager = (ActivityManager) context
+                    .getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+            sPageLoader = new PageLoader(PhotoIndex.get(context), new FlickrFetcher(),
+                    activityManager.getMemoryClass() * 1024 * 1024 / HEAP_FRACTION);
+            context.getApplicationContext().registerComponentCallbacks(sPageLoader);
+        }
+        return sPageLoader;
+    }
+
+    PageLoader(PhotoIndex photoIndex, FlickrFetcher flickrFetcher, int sessionBudgetBytes){
+        mPhotoIndex = photoIndex;
+        mFlickrFetcher = flickrFetcher;
+        mSessions = new LruCache<String, QueryState>(sessionBudgetBytes) {
+            @Override
+            protected int sizeOf(String key, QueryState state) {
+                //tiny sessions still count for their share, which caps how many are kept
+                return (int) Math.max(state.mItems.getSizeInBytes(), maxSize() / MAX_SESSIONS);
+            }
+        };
+
+        //also opens the index database, here rather than on the caller's main thread
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                for(Map.Entry<String, Long> query : mPhotoIndex.getStoredQueries().entrySet()){
+                    mQueryTrie.add(query.getKey(), query.getValue());
+                }
+            }
+        });
+    }
+
+    public void setListener(Listener listener){
+        mListener = listener;
+    }
+
+    //the loaded items of the current query, in result order
+    public GalleryItemStore getItems(){
+        return mState.mItems;
+    }
+
+    public String getQuery(){
+        return mState.mQuery;
+    }
+
+    public boolean isLoading(){
+        return !mState.mInFlight.isEmpty();
+    }
+
+    //remembered with the query, so switching back to it lands in the same place
+    public void setScrollPosition(int position, int offset){
+        mState.mScrollPosition = position;
+        mState.mScrollOffset = offset;
+    }
+
+    public int getScrollPosition(){
+        return mState.mScrollPosition;
+    }
+
+    public int getScrollOffset(){
+        return mState.mScrollOffset;
+    }
+
+    /**
+     * Switches to a new query, parking the old one and cancelling its
+     * requests. A parked session for the query, or a preview of it already on
+     * screen, is carried over and its pages are checked against the network.
+     */
+    public void setQuery(String query){
+        query = QueryPreferences.normalizeQuery(query);
+        mPreviewRequest++;
+        if(isCurrent(query) && !mState.mPreview){
+            if(mState.mTransient){
+                keep(mState);
+            }
+            return;
+        }
+        showQuery(query, false);
+    }
+
+    /**
+     * Like setQuery(), but the results are neither stored in the index nor
+     * offered by completeQuery() and the session is not parked, so searches
+     * for half typed words leave nothing behind. A later setQuery() for the
+     * same query keeps what was fetched.
+     */
+    public void searchQuery(String typed){
+        String query = QueryPreferences.normalizeQuery(typed);
+        mPreviewRequest++;
+        if(isCurrent(query) && !mState.mPreview){
+            return;
+        }
+        showQuery(query, true);
+    }
+
+    private void showQuery(String query, boolean transientQuery){
+        QueryState previous = mState;
+        //a transient search leaves the parked session where it is
+        QueryState restored = transientQuery
+                ? mSessions.get(keyFor(query)) : mSessions.remove(keyFor(query));
+        if(restored == null && previous.mPreview && isCurrent(query)){
+            restored = previous;
+        }
+        QueryState state = switchTo(query, false, transientQuery);
+        if(restored != null){
+            state.mItems = restored.mItems;
+            state.mNextPageToDeliver = restored.mNextPageToDeliver;
+            state.mScrollPosition = restored.mScrollPosition;
+            state.mScrollOffset = restored.mScrollOffset;
+        }
+
+        if(mListener != null){
+            //a preview's pages are on screen already
+            if(restored != previous){
+                mListener.onItemsReset();
+            }
+            mListener.onLoadingChanged(false);
+        }
+        if(restored != null){
+            revalidate(state);
+        }
+    }
+
+    //the most recent stored search starting with prefix, or null
+    public String completeQuery(String prefix){
+        return mQueryTrie.complete(prefix);
+    }
+
+    /**
+     * Shows query's stored pages without going to the network. Nothing
+     * changes unless its first page is stored, and a later setQuery() or
+     * previewQuery() call wins over this one.
+     */
+    public void previewQuery(String typed){
+        final String query = QueryPreferences.normalizeQuery(typed);
+        final int request = ++mPreviewRequest;
+        if(isCurrent(query)){
+            return;
+        }
+        QueryState parked = mSessions.get(keyFor(query));
+        if(parked != null){
+            showPreview(query, parked.mItems, parked.mNextPageToDeliver);
+            return;
+        }
+
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final List<GalleryItem> firstPage = mPhotoIndex.getPage(query, 1);
+                if(firstPage == null || firstPage.isEmpty()){
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(request != mPreviewRequest || isCurrent(query)){
+                            return;
+                        }
+                        showPreview(query, GalleryItemStore.EMPTY.append(
+                                GalleryItemStore.Page.of(1, firstPage)), 2);
+                    }
+                });
+            }
+        });
+    }
+
+    //requests the lowest page that is neither shown nor on its way
+    public boolean loadNextPage(){
+        if(mState.mPreview && mState.mPreviewExhausted){
+            return false;
+        }
+        int page = 1;
+        while(page < mState.mNextPageToDeliver
+                || mState.mInFlight.containsKey(page)
+                || mState.mPending.containsKey(page)){
+            page++;
+        }
+        return loadPage(page);
+    }
+
+    /**
+     * Drops every page more than RETAINED_PAGES away from the one holding
+     * position. Dropped pages keep their ids, so the grid keeps its layout.
+     */
+    public void retainAround(int position){
+        QueryState state = mState;
+        GalleryItemStore items = state.mItems;
+        if(position < 0 || position >= items.size()){
+            return;
+        }
+
+        int center = items.indexOfPage(items.getPageNumber(position));
+        for(int i = 0; i < items.getPageCount(); i++){
+            GalleryItemStore.Page page = items.getPage(i);
+            if(Math.abs(i - center) > RETAINED_PAGES && page.isResident()){
+                replacePage(state, page.drop());
+            }
+        }
+    }
+
+    //brings a dropped page back, from the index if it is still there
+    public void reloadPage(final int page){
+        final QueryState state = mState;
+        int start = state.mItems.startOf(page);
+        if(start < 0 || state.mReloading.containsKey(page)
+                || state.mItems.isResident(start)){
+            return;
+        }
+
+        Future<?> future = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                List<GalleryItem> items = mPhotoIndex.getPage(state.mQuery, page);
+                if(items == null && !state.mPreview){
+                    items = fetchFromNetwork(state, page);
+                }
+                postReload(state, page,
+                        items == null ? Collections.<GalleryItem>emptyList() : items);
+            }
+        });
+        state.mReloading.put(page, future);
+    }
+
+    private boolean isCurrent(String query){
+        return query == null ? mState.mQuery == null : query.equals(mState.mQuery);
+    }
+
+    private void showPreview(String query, GalleryItemStore items, int nextPage){
+        QueryState state = switchTo(query, true, false);
+        state.mItems = items;
+        state.mNextPageToDeliver = nextPage;
+        if(mListener != null){
+            mListener.onItemsReset();
+            mListener.onLoadingChanged(false);
+        }
+    }
+
+    //parks the current state unless it is a preview, transient or empty, then starts a new one
+    private QueryState switchTo(String query, boolean preview, boolean transientQuery){
+        cancelRequests(mState);
+        if(!mState.mPreview && !mState.mTransient && !mState.mItems.isEmpty()){
+            mSessions.put(keyFor(mState.mQuery), mState);
+        }
+        mGeneration++;
+        mState = new QueryState(query, mGeneration, preview, transientQuery);
+        return mState;
+    }
+
+    //turns a transient search into a normal query and stores what it fetched so far
+    private void keep(final QueryState state){
+        final Map<Integer, List<GalleryItem>> pages;
+        synchronized (state.mUnsaved){
+            state.mTransient = false;
+            pages = new TreeMap<>(state.mUnsaved);
+            state.mUnsaved.clear();
+        }
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                for(Map.Entry<Integer, List<GalleryItem>> page : pages.entrySet()){
+                    save(state.mQuery, page.getKey(), page.getValue());
+                }
+            }
+        });
+    }
+
+    private static void cancelRequests(QueryState state){
+        for(Future<?> future : state.mInFlight.values()){
+            future.cancel(true);
+        }
+        for(Future<?> future : state.mReloading.values()){
+            future.cancel(true);
+        }
+    }
+
+    //refreshes the carried over pages the index says are stale, dropped ones reload on demand
+    private void revalidate(QueryState state){
+        GalleryItemStore items = state.mItems;
+        for(int i = 0; i < items.getPageCount(); i++){
+            if(items.getPage(i).isResident()){
+                refreshPage(state, items.getPage(i).getPageNumber());
+            }
+        }
+    }
+
+    private void refreshPage(final QueryState state, final int page){
+        Future<?> future = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                List<GalleryItem> items = null;
+                if(mPhotoIndex.isStale(state.mQuery, page)){
+                    items = fetchFromNetwork(state, page);
+                }
+                if(Thread.currentThread().isInterrupted()){
+                    return;
+                }
+                postPage(state, page, items == null || items.isEmpty() ? null : items, true);
+            }
+        });
+        state.mInFlight.put(page, future);
+        if(mListener != null && state.mInFlight.size() == 1){
+            mListener.onLoadingChanged(true);
+        }
+    }
+
+    private boolean loadPage(final int page){
+        final QueryState state = mState;
+        if(page < state.mNextPageToDeliver || state.mInFlight.containsKey(page)
+                || state.mPending.containsKey(page)){
+            return false;
+        }
+
+        Future<?> future = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                fetchPage(state, page);
+            }
+        });
+        state.mInFlight.put(page, future);
+        if(mListener != null && state.mInFlight.size() == 1){
+            mListener.onLoadingChanged(true);
+        }
+        return true;
+    }
+
+    //worker thread: stored copy first, then the network if it is stale
+    private void fetchPage(QueryState state, int page){
+        String query = state.mQuery;
+        List<GalleryItem> cached = mPhotoIndex.getPage(query, page);
+        if(state.mPreview){
+            postPage(state, page, cached, true);
+            return;
+        }
+        if(cached != null && !mPhotoIndex.isStale(query, page)){
+            postPage(state, page, cached, true);
+            return;
+        }
+        if(cached != null){
+            postPage(state, page, cached, false);
+        }
+
+        List<GalleryItem> items = fetchFromNetwork(state, page);
+        if(Thread.currentThread().isInterrupted()){
+            return;
+        }
+
+        //an empty page usually means we are offline, keep what we had
+        if(!items.isEmpty()){
+            postPage(state, page, items, true);
+        }else{
+            if(cached == null){
+                Log.w(TAG, "Nothing loaded for page " + page + " of " + query);
+            }
+            postPage(state, page, null, true);
+        }
+    }
+
+    //worker thread: downloads a page and stores it in the index, unless the search is transient
+    private List<GalleryItem> fetchFromNetwork(QueryState state, int page){
+        String query = state.mQuery;
+        List<GalleryItem> items;
+        if(query == null){
+            items = mFlickrFetcher.fetchRecentPhotos(page);
+        }else{
+            items = mFlickrFetcher.searchPhotos(query, page);
+        }
+
+        if(items.isEmpty() || Thread.currentThread().isInterrupted()){
+            return items;
+        }
+        synchronized (state.mUnsaved){
+            if(state.mTransient){
+                state.mUnsaved.put(page, items);
+                return items;
+            }
+        }
+        save(query, page, items);
+        return items;
+    }
+
+    //worker thread
+    private void save(String query, int page, List<GalleryItem> items){
+        mPhotoIndex.putPage(query, page, items);
+        if(query != null && page == 1){
+            mQueryTrie.add(query, System.currentTimeMillis());
+        }
+    }
+
+    private void postReload(final QueryState state, final int page, final List<GalleryItem> items){
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                state.mReloading.remove(page);
+                int start = state.mItems.startOf(page);
+                if(state.mGeneration != mGeneration || items.isEmpty()
+                        || start < 0 || state.mItems.isResident(start)){
+                    return;
+                }
+                replacePage(state, GalleryItemStore.Page.of(page, items));
+            }
+        });
+    }
+
+    private void postPage(final QueryState state, final int page, final List<GalleryItem> items,
+                          final boolean done){
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                //results for a query the user has moved away from
+                if(state.mGeneration != mGeneration){
+                    return;
+                }
+                onPageResult(state, page, items, done);
+            }
+        });
+    }
+
+    private void onPageResult(QueryState state, int page, List<GalleryItem> items, boolean done){
+        if(done){
+            state.mInFlight.remove(page);
+        }
+        if(state.mPreview && items == null){
+            //the index has no more pages for the preview
+            state.mPreviewExhausted = true;
+        }
+
+        if(state.mItems.startOf(page) >= 0){
+            //the page is already on screen from the index, swap in the fresh copy
+            if(items != null){
+                replacePage(state, GalleryItemStore.Page.of(page, items));
+            }
+        }else if(items != null){
+            state.mPending.put(page, items);
+            deliverPendingPages(state);
+        }
+
+        if(mListener != null && done && state.mInFlight.isEmpty()){
+            mListener.onLoadingChanged(false);
+        }
+    }
+
+    //appends buffered pages for as long as they follow on from the last one shown
+    private void deliverPendingPages(QueryState state){
+        List<GalleryItem> next;
+        while((next = state.mPending.remove(state.mNextPageToDeliver)) != null){
+            int start = state.mItems.size();
+            state.mItems = state.mItems.append(
+                    GalleryItemStore.Page.of(state.mNextPageToDeliver, next));
+            state.mNextPageToDeliver++;
+
+            //photos the store already had are left out
+            int inserted = state.mItems.size() - start;
+            if(mListener != null && inserted > 0){
+                mListener.onItemsInserted(start, inserted);
+            }
+        }
+    }
+
+    private void replacePage(QueryState state, GalleryItemStore.Page page){
+        int start = state.mItems.startOf(page.getPageNumber());
+        int index = state.mItems.indexOfPage(page.getPageNumber());
+        int oldSize = state.mItems.getPage(index).size();
+        state.mItems = state.mItems.replace(page);
+
+        if(mListener != null){
+            //the stored page, it may have lost photos found on other pages
+            mListener.onItemsReplaced(start, oldSize, state.mItems.getPage(index).size());
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        //parked sessions can always be rebuilt from the index
+        if(level >= TRIM_MEMORY_MODERATE){
+            mSessions.evictAll();
+        }else if(level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW
+                || level == TRIM_MEMORY_RUNNING_CRITICAL){
+            mSessions.trimToSize(mSessions.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mSessions.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    //the recent feed gets a key no typed query can have, "" is a search of its own
+    private static String keyFor(String query){
+        return query == null ? RECENT_SESSION_KEY : query;
+    }
+
+    private static class QueryState {
+        final String mQuery;
+        final int mGeneration;
+        //shows stored pages only, nothing is fetched
+        final boolean mPreview;
+        //searched for but not yet kept, see searchQuery(). Written under mUnsaved
+        boolean mTransient;
+        //pages a transient search fetched, stored once it is kept
+        final Map<Integer, List<GalleryItem>> mUnsaved = new HashMap<>();
+        boolean mPreviewExhausted = false;
+        GalleryItemStore mItems = GalleryItemStore.EMPTY;
+        //pages that arrived before an earlier page did
+        final TreeMap<Integer, List<GalleryItem>> mPending = new TreeMap<>();
+        final Map<Integer, Future<?>> mInFlight = new HashMap<>();
+        //dropped pages on their way back
+        final Map<Integer, Future<?>> mReloading = new HashMap<>();
+        int mNextPageToDeliver = 1;
+        //first visible position and its top offset in pixels
+        int mScrollPosition = 0;
+        int mScrollOffset = 0;
+
+        QueryState(String query, int generation, boolean preview, boolean transientQuery){
+            mQuery = query;
+            mGeneration = generation;
+            mPreview = preview;
+            mTransient = transientQuery;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.cmcinnis.craig.photogallery.PhotoDbSchema.PageTable;
+import com.cmcinnis.craig.photogallery.PhotoDbSchema.PhotoTable;
+
+public class PhotoBaseHelper extends SQLiteOpenHelper {
+    private static final int VERSION = 3;
+    private static final String DATABASE_NAME = "photoIndex.db";
+
+    public PhotoBaseHelper(Context context){
+        super(context, DATABASE_NAME, null, VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("create table " + PhotoTable.NAME + "(" +
+                " _id integer primary key autoincrement, " +
+                PhotoTable.Cols.QUERY + " text not null, " +
+                PhotoTable.Cols.PAGE + " integer not null, " +
+                PhotoTable.Cols.POSITION + " integer not null, " +
+                PhotoTable.Cols.ID + ", " +
+                PhotoTable.Cols.TITLE + ", " +
+                PhotoTable.Cols.URL + ", " +
+                PhotoTable.Cols.OWNER + ", " +
+                PhotoTable.Cols.VARIANTS + ", " +
+                PhotoTable.Cols.FARM + ", " +
+                PhotoTable.Cols.SERVER + ", " +
+                PhotoTable.Cols.SECRET +
+                ")"
+        );
+        db.execSQL("create index photos_query_page on " + PhotoTable.NAME + "(" +
+                PhotoTable.Cols.QUERY + ", " + PhotoTable.Cols.PAGE + ")");
+
+        db.execSQL("create table " + PageTable.NAME + "(" +
+                PageTable.Cols.QUERY + " text not null, " +
+                PageTable.Cols.PAGE + " integer not null, " +
+                PageTable.Cols.FETCHED_AT + " integer not null, " +
+                "primary key (" + PageTable.Cols.QUERY + ", " + PageTable.Cols.PAGE + ")" +
+                ")"
+        );
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        //the index is only a cache, start over rather than migrate
+        db.execSQL("drop table if exists " + PhotoTable.NAME);
+        db.execSQL("drop table if exists " + PageTable.NAME);
+        onCreate(db);
+    }
+}
@@ -0,0 +1,28 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import com.cmcinnis.craig.photogallery.PhotoDbSchema.PhotoTable;
+
+public class PhotoCursorWrapper extends CursorWrapper {
+    public PhotoCursorWrapper(Cursor cursor){
+        super(cursor);
+    }
+
+    public GalleryItem getGalleryItem(){
+        GalleryItem item = new GalleryItem();
+        item.setId(getString(getColumnIndex(PhotoTable.Cols.ID)));
+        item.setCaption(getString(getColumnIndex(PhotoTable.Cols.TITLE)));
+        item.setUrl(getString(getColumnIndex(PhotoTable.Cols.URL)));
+        item.setOwner(getString(getColumnIndex(PhotoTable.Cols.OWNER)));
+        item.setFarm(getInt(getColumnIndex(PhotoTable.Cols.FARM)));
+        item.setServer(getString(getColumnIndex(PhotoTable.Cols.SERVER)));
+        item.setSecret(getString(getColumnIndex(PhotoTable.Cols.SECRET)));
+        for(PhotoVariant variant
+                : PhotoVariant.decode(getString(getColumnIndex(PhotoTable.Cols.VARIANTS)))){
+            item.addVariant(variant);
+        }
+        return item;
+    }
+}
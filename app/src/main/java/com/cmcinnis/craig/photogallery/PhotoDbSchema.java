@@ -0,0 +1,33 @@
+package com.cmcinnis.craig.photogallery;
+
+public class PhotoDbSchema {
+    //one row per photo in a stored result page
+    public static final class PhotoTable {
+        public static final String NAME = "photos";
+
+        public static final class Cols {
+            public static final String QUERY = "query";
+            public static final String PAGE = "page";
+            public static final String POSITION = "position";
+            public static final String ID = "photo_id";
+            public static final String TITLE = "title";
+            public static final String URL = "url";
+            public static final String OWNER = "owner";
+            public static final String VARIANTS = "variants";
+            public static final String FARM = "farm";
+            public static final String SERVER = "server";
+            public static final String SECRET = "secret";
+        }
+    }
+
+    //one row per stored result page, records when it was fetched
+    public static final class PageTable {
+        public static final String NAME = "pages";
+
+        public static final class Cols {
+            public static final String QUERY = "query";
+            public static final String PAGE = "page";
+            public static final String FETCHED_AT = "fetched_at";
+        }
+    }
+}
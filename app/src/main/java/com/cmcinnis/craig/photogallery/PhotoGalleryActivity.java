@@ -6,6 +6,12 @@ import android.support.v4.app.Fragment;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
 public class PhotoGalleryActivity extends SingleFrameActivity {
 
     public static Intent newIntent(Context context){
@@ -16,4 +22,35 @@ public class PhotoGalleryActivity extends SingleFrameActivity {
     protected Fragment createFragment(){
         return PhotoGalleryFragment.newInstance();
     }
+
+    /**
+     * Adds Metrics to `adb shell dumpsys activity <this activity>`. Options:
+     * --json prints only the metrics as JSON, --reset clears them and
+     * --enable / --disable switch recording on and off.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        List<String> options = args == null ? Arrays.<String>asList() : Arrays.asList(args);
+        if(options.contains("--enable")){
+            Metrics.setEnabled(true);
+        }else if(options.contains("--disable")){
+            Metrics.setEnabled(false);
+        }
+
+        if(options.contains("--json")){
+            try{
+                Metrics.writeJson(writer);
+                writer.println();
+            }catch (IOException ioe){
+                writer.println("Failed to write metrics: " + ioe);
+            }
+        }else{
+            super.dump(prefix, fd, writer, args);
+            Metrics.dump(prefix, writer);
+        }
+
+        if(options.contains("--reset")){
+            Metrics.reset();
+        }
+    }
 }
@@ -0,0 +1,13 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.app.Application;
+
+public class PhotoGalleryApplication extends Application {
+
+    @Override
+    public void onCreate(){
+        super.onCreate();
+        //the gallery reads the stored query as soon as it opens
+        PreferenceStore.preload(this);
+    }
+}
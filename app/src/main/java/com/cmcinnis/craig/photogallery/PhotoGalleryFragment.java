@@ -1,20 +1,12 @@
 package com.cmcinnis.craig.photogallery;
 
-import android.app.job.JobInfo;
-import android.app.job.JobScheduler;
-import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
-import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.support.annotation.NonNull;
-import android.support.v4.app.Fragment;
-import android.support.v4.util.LruCache;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.SearchView;
@@ -25,29 +17,44 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AbsListView;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
-import android.widget.TextView;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PhotoGalleryFragment extends VisibleFragment {
 
     private static final String TAG = "PhotoGalleryFragment";
-    private static final int PHOTO_JOB_ID = 1;
+    static final int SPAN_COUNT = 3;
+    //typing has to pause this long before a search goes out
+    private static final long SEARCH_DELAY_MS = 400;
+    //and its results have to stay up this long before it becomes the stored query
+    private static final long KEEP_SEARCH_DELAY_MS = 5000;
+    //from the grid emptying to its first thumbnail, on launch and on a new search
+    private static final Metrics.Histogram FIRST_THUMBNAIL =
+            Metrics.histogram("gallery.first_thumbnail");
 
     private RecyclerView mPhotoRecyclerView;
     private GridLayoutManager mPhotoLayoutManager;
-    private List<GalleryItem> mItems = new ArrayList<>();
-    private boolean updating;
+    private ScrollPrefetcher mScrollPrefetcher;
+    private PageLoader mPageLoader;
+    private PreferenceStore.Listener mPreferenceListener;
+    private Handler mSearchHandler = new Handler();
+    private Runnable mPendingSearch;
+    private Runnable mPendingKeep;
+    //set when the grid empties, until the first thumbnail shows up in it
+    private long mFirstThumbnailStart;
+    private PhotoAdapter mPhotoAdapter;
+    //list diffs are worked out here, off the main thread
+    private ExecutorService mDiffExecutor = Executors.newSingleThreadExecutor();
+    private Drawable mPlaceholder;
     private ThumbnailDownloader<PhotoHolder> mThumbnailDownloader;
 
-    private static final int PHOTO_CACHE_SIZE = 4 * 1024 * 1024;
-    private static final int MAX_PHOTOS_CACHED = 60;
-    private LruCache<String, Drawable> mPhotoCache;
+    private BitmapMemoryCache mPhotoCache;
+    private ThumbnailSizeSelector mSizeSelector;
+    private int mCellWidth;
+    private int mCellHeight;
 
     private ProgressBar mProgressBar;
 
@@ -60,67 +67,110 @@ public class PhotoGalleryFragment extends VisibleFragment {
         super.onCreate(savedInstanceState);
         setRetainInstance(true);
         setHasOptionsMenu(true);
-        updateItems();
 
-        //use JobService if running >= LOLLIPOP
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
-        {
-            JobScheduler scheduler = (JobScheduler)
-                    getContext().getSystemService(Context.JOB_SCHEDULER_SERVICE);
-
-            //check if it is already scheduled
-            boolean hasBeenScheduled = false;
-            for(JobInfo jobInfo : scheduler.getAllPendingJobs()){
-                if(jobInfo.getId() == PHOTO_JOB_ID){
-                    hasBeenScheduled = true;
+        mFirstThumbnailStart = Metrics.startTimer();
+
+        //pages live in the loader, so a recreated fragment picks up where it left off
+        mPageLoader = PageLoader.get(getActivity());
+        mPageLoader.setListener(new PageLoader.Listener() {
+            @Override
+            public void onItemsReset() {
+                mFirstThumbnailStart = Metrics.startTimer();
+                if(mScrollPrefetcher != null){
+                    mScrollPrefetcher.reset();
+                }
+                if(mPhotoAdapter != null){
+                    //a query switched back to opens where it was left
+                    mPhotoAdapter.submitItems(mPageLoader.getItems(),
+                            mPageLoader.getScrollPosition(), mPageLoader.getScrollOffset());
                 }
             }
-            //otherwise create it
-            if(!hasBeenScheduled){
-                JobInfo jobInfo = new JobInfo.Builder(PHOTO_JOB_ID, new ComponentName(getContext(), PollServiceJS.class))
-                        .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
-                        .setPeriodic(1000 * 60 * 15)
-                        .setPersisted(true)
-                        .build();
+
+            @Override
+            public void onItemsInserted(int positionStart, int itemCount) {
+                if(mPhotoAdapter != null){
+                    mPhotoAdapter.appendItems(mPageLoader.getItems(), positionStart, itemCount);
+                }
             }
-        } else {
-            Intent i = PollService.newIntent(getActivity());
-            getActivity().startService(i);
-        }
 
-        //initialize bitmap cache
-        mPhotoCache = new LruCache<String, Drawable>(PHOTO_CACHE_SIZE);
+            @Override
+            public void onItemsReplaced(int positionStart, int oldItemCount, int newItemCount) {
+                if(mPhotoAdapter != null){
+                    mPhotoAdapter.replaceItems(mPageLoader.getItems(), positionStart,
+                            oldItemCount, newItemCount);
+                }
+            }
 
+            @Override
+            public void onLoadingChanged(boolean loading) {
+                if(mProgressBar != null){
+                    boolean empty = mPageLoader.getItems().isEmpty();
+                    mProgressBar.setVisibility(loading && empty ? View.VISIBLE : View.GONE);
+                }
+            }
+        });
+        updateItems();
+
+        //the grid and menu follow the stored state, whoever changed it
+        mPreferenceListener = new PreferenceStore.Listener() {
+            @Override
+            public void onPreferenceChanged(String key) {
+                if(QueryPreferences.PREF_SEARCH_QUERY.equals(key)){
+                    updateItems();
+                }else if(QueryPreferences.PREF_IS_ALARM_ON.equals(key)
+                        || QueryPreferences.PREF_PREWARM_THUMBNAILS.equals(key)){
+                    if(getActivity() != null){
+                        getActivity().invalidateOptionsMenu();
+                    }
+                }
+            }
+        };
+        PreferenceStore.get(getActivity()).addListener(mPreferenceListener);
 
-        //starting handler for downloading images
+        //the job or alarm may have been dropped, e.g. by an app update
+        if(QueryPreferences.isAlarmOn(getActivity())
+                && !PollServiceUtils.isServiceAlarmOn(getActivity())){
+            PollServiceUtils.setServiceAlarm(getActivity(), true);
+        }
+
+        //process-wide bitmap cache, outlives this fragment
+        mPhotoCache = BitmapMemoryCache.get(getActivity());
+        mSizeSelector = ThumbnailSizeSelector.get(getActivity());
+
+        //results are posted back to the main thread through this handler
         Handler responseHandler = new Handler();
-        mThumbnailDownloader = new ThumbnailDownloader<>(responseHandler);
+        mThumbnailDownloader = new ThumbnailDownloader<>(responseHandler,
+                ThumbnailDiskCache.get(getActivity()));
+        mThumbnailDownloader.setPreferRgb565(true);
+        mThumbnailDownloader.setBitmapPool(mPhotoCache.getBitmapPool());
+        mThumbnailDownloader.setCompactAfterDisplay(true);
         mThumbnailDownloader.setThumbnailDownloadListener(
                 new ThumbnailDownloader.ThumbnailDownloadListener<PhotoHolder>() {
                     @Override
                     public void onThumbnailDownloaded(PhotoHolder target, Bitmap thumbnail, String url) {
-                        Drawable drawable = new BitmapDrawable(getResources(), thumbnail);
-                        target.bindDrawable(drawable);
-                        mPhotoCache.put(url, drawable);
-                        mPhotoCache.trimToSize(MAX_PHOTOS_CACHED);
+                        target.bindBitmap(thumbnail, url);
+                        mPhotoCache.put(url, thumbnail);
                     }
                 });
-        mThumbnailDownloader.start();
-        mThumbnailDownloader.getLooper();
-        Log.i(TAG, "Background thread started");
+        Log.i(TAG, "Thumbnail workers started");
     }
 
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        mPhotoAdapter = null;
         mThumbnailDownloader.clearQueue();
     }
 
     @Override
     public void onDestroy(){
         super.onDestroy();
+        mPageLoader.setListener(null);
+        cancelPendingSearch();
+        PreferenceStore.get(getActivity()).removeListener(mPreferenceListener);
+        mDiffExecutor.shutdownNow();
         mThumbnailDownloader.quit();
-        Log.i(TAG, "Background thread destroyed");
+        Log.i(TAG, "Thumbnail workers stopped");
     }
 
     @Override
@@ -135,12 +185,9 @@ public class PhotoGalleryFragment extends VisibleFragment {
             @Override
             public boolean onQueryTextSubmit(String s) {
                 Log.d(TAG, "QueryTextSubmit " + s);
-                QueryPreferences.setStoredQuery(getActivity(), s);
-
-                mItems.clear();
+                cancelPendingSearch();
+                keepQuery(s);
                 searchView.clearFocus();
-                QueryPreferences.setStoredPage(getActivity(), 1);
-                updateItems();
 
                 return true;
             }
@@ -148,8 +195,9 @@ public class PhotoGalleryFragment extends VisibleFragment {
             @Override
             public boolean onQueryTextChange(String s) {
                 Log.d(TAG, "QueryTextChange: " + s);
+                onSearchTextChanged(s);
 
-                return false;
+                return true;
             }
         });
 
@@ -168,6 +216,9 @@ public class PhotoGalleryFragment extends VisibleFragment {
             toggleItem.setTitle(R.string.start_polling);
         }
 
+        menu.findItem(R.id.menu_item_prewarm)
+                .setChecked(QueryPreferences.isPrewarmEnabled(getActivity()));
+
     }
 
     @Override
@@ -175,24 +226,88 @@ public class PhotoGalleryFragment extends VisibleFragment {
         switch (item.getItemId()){
             case R.id.menu_item_clear:
                 QueryPreferences.setStoredQuery(getActivity(), null);
-                updateItems();
                 return true;
             case R.id.menu_item_toggle_polling:
                 boolean shouldStartAlarm = !PollServiceUtils.isServiceAlarmOn(getActivity());
                 PollServiceUtils.setServiceAlarm(getActivity(), shouldStartAlarm);
-                getActivity().invalidateOptionsMenu();
+                return true;
+            case R.id.menu_item_prewarm:
+                boolean prewarm = !item.isChecked();
+                QueryPreferences.setPrewarmEnabled(getActivity(), prewarm);
                 return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
+    //shows the stored query, loading its first page if nothing is loaded yet
     private void updateItems(){
         String query = QueryPreferences.getStoredQuery(getActivity());
-        if(mProgressBar != null){
-            mProgressBar.setVisibility(View.VISIBLE);
+        mPageLoader.setQuery(query);
+        if(mPageLoader.getItems().isEmpty()){
+            mPageLoader.loadNextPage();
+        }
+    }
+
+    //stores query, which also keeps a transient search of it
+    private void keepQuery(String query){
+        QueryPreferences.setStoredQuery(getActivity(), query);
+        //the store stays quiet when the stored query was already this one
+        updateItems();
+    }
+
+    /**
+     * Shows the stored results of the closest past search straight away, then
+     * searches for the text itself once typing pauses. That search is
+     * transient and only becomes the stored query when it is submitted or has
+     * been on screen for a while. Each keystroke cancels what the one before it
+     * scheduled.
+     */
+    private void onSearchTextChanged(String text){
+        cancelPendingSearch();
+        final String query = QueryPreferences.normalizeQuery(text);
+        if(query == null){
+            //back to whatever was last searched for
+            updateItems();
+            return;
+        }
+
+        String completion = mPageLoader.completeQuery(query);
+        if(completion != null){
+            mPageLoader.previewQuery(completion);
+        }
+
+        mPendingSearch = new Runnable() {
+            @Override
+            public void run() {
+                mPendingSearch = null;
+                mPageLoader.searchQuery(query);
+                if(mPageLoader.getItems().isEmpty()){
+                    mPageLoader.loadNextPage();
+                }
+
+                mPendingKeep = new Runnable() {
+                    @Override
+                    public void run() {
+                        mPendingKeep = null;
+                        keepQuery(query);
+                    }
+                };
+                mSearchHandler.postDelayed(mPendingKeep, KEEP_SEARCH_DELAY_MS);
+            }
+        };
+        mSearchHandler.postDelayed(mPendingSearch, SEARCH_DELAY_MS);
+    }
+
+    private void cancelPendingSearch(){
+        if(mPendingSearch != null){
+            mSearchHandler.removeCallbacks(mPendingSearch);
+            mPendingSearch = null;
+        }
+        if(mPendingKeep != null){
+            mSearchHandler.removeCallbacks(mPendingKeep);
+            mPendingKeep = null;
         }
-        new FetchItemsTask(query).execute();
     }
 
     @Override
@@ -200,59 +315,92 @@ public class PhotoGalleryFragment extends VisibleFragment {
                              ViewGroup container,
                              Bundle savedInstanceState){
         View v = inflater.inflate(R.layout.fragment_photo_gallery, container, false);
-        mPhotoLayoutManager = new GridLayoutManager(getActivity(), 3);
+        mPhotoLayoutManager = new GridLayoutManager(getActivity(), SPAN_COUNT);
         mPhotoRecyclerView = (RecyclerView) v.findViewById(R.id.photo_recycler_view);
         mPhotoRecyclerView.setLayoutManager(mPhotoLayoutManager);
-        updating = false;
-
-        QueryPreferences.setStoredPage(getActivity(), 1);
-
-        mPhotoRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
-            @Override
-            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
-                super.onScrolled(recyclerView, dx, dy);
 
-                if(!recyclerView.canScrollVertically(1)){
-                    int lastVisibleItem = mPhotoLayoutManager.findLastVisibleItemPosition();
+        //decode no larger than a grid cell, recomputed on rotation
+        mCellWidth = getResources().getDisplayMetrics().widthPixels / SPAN_COUNT;
+        mCellHeight = getResources().getDimensionPixelSize(R.dimen.gallery_item_height);
+        mThumbnailDownloader.setTargetSize(mCellWidth, mCellHeight);
 
-                    if((!updating) && (dy > 0) && (lastVisibleItem >= (mItems.size() - 1))) {
+        //request pages and thumbnails before the user reaches them
+        mScrollPrefetcher = new ScrollPrefetcher(mPhotoLayoutManager,
+                new ScrollPrefetcher.Callbacks() {
+                    @Override
+                    public int getItemCount() {
+                        return mPhotoAdapter.getItemCount();
+                    }
 
-                        //if user reaches end of page
-                        int currPage = QueryPreferences.getStoredPage(getActivity());
-                        QueryPreferences.setStoredPage(getActivity(), currPage + 1);
+                    @Override
+                    public boolean isLoadingPage() {
+                        return mPageLoader.isLoading();
+                    }
 
-                        //request new page
-                        String query = QueryPreferences.getStoredQuery(getActivity());
-                        new FetchItemsTask(query).execute();
+                    @Override
+                    public void onLoadNextPage() {
+                        mPageLoader.loadNextPage();
+                    }
 
-                        Log.d(TAG, "Scrolled to " + currPage + 1);
+                    @Override
+                    public void onPrefetchThumbnails(int fromPosition, int toPosition) {
+                        for(int i = fromPosition; i <= toPosition; i++){
+                            GalleryItem item = mPhotoAdapter.getItem(i);
+                            if(item == null){
+                                continue;
+                            }
+                            String url = thumbnailUrlFor(item);
+                            if(mPhotoCache.get(url) == null){
+                                mThumbnailDownloader.prefetchThumbnail(url);
+                            }
+                        }
                     }
+                });
+        mPhotoRecyclerView.addOnScrollListener(mScrollPrefetcher);
+
+        //let go of pages far from where the user stopped, and remember the spot
+        mPhotoRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if(newState == RecyclerView.SCROLL_STATE_IDLE){
+                    int position = mPhotoLayoutManager.findFirstVisibleItemPosition();
+                    View first = mPhotoLayoutManager.findViewByPosition(position);
+                    mPageLoader.retainAround(position);
+                    mPageLoader.setScrollPosition(Math.max(position, 0), first == null
+                            ? 0 : first.getTop() - mPhotoLayoutManager.getPaddingTop());
                 }
             }
         });
 
         mProgressBar = v.findViewById(R.id.progress_bar);
-        mProgressBar.setVisibility(View.GONE);
+        mProgressBar.setVisibility(mPageLoader.isLoading() && mPageLoader.getItems().isEmpty()
+                ? View.VISIBLE : View.GONE);
 
+        //one shared placeholder instead of a fresh drawable per bind
+        mPlaceholder = getResources().getDrawable(R.drawable.bill_up_close);
         setupAdapter();
 
         return v;
 
     }
 
-    private void setupAdapter(){
-
+    //the rendition that fits a grid cell on the current connection
+    private String thumbnailUrlFor(GalleryItem item){
+        return mSizeSelector.selectUrl(item, mCellWidth, mCellHeight);
+    }
 
+    private void setupAdapter(){
         if(isAdded() && (mPhotoRecyclerView.getAdapter() == null)){ //checks that fragment has been attached to activity
-            mPhotoRecyclerView.setAdapter(new PhotoAdapter(mItems));
-        }else{
-            mPhotoRecyclerView.getAdapter().notifyDataSetChanged();
+            mPhotoAdapter = new PhotoAdapter(mPageLoader.getItems());
+            mPhotoRecyclerView.setAdapter(mPhotoAdapter);
         }
     }
 
     private class PhotoHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
         private ImageView mItemImageView;
         private GalleryItem mGalleryItem;
+        private Bitmap mBoundBitmap;
+        private String mBoundUrl;
 
         public PhotoHolder(View itemView){
             super(itemView);
@@ -261,26 +409,145 @@ public class PhotoGalleryFragment extends VisibleFragment {
         }
 
         public void bindDrawable(Drawable drawable){
+            releaseBitmap();
             mItemImageView.setImageDrawable(drawable);
         }
 
+        public void bindBitmap(Bitmap bitmap, String url){
+            releaseBitmap();
+            mPhotoCache.acquire(bitmap);
+            mBoundBitmap = bitmap;
+            mBoundUrl = url;
+            mItemImageView.setImageBitmap(bitmap);
+
+            if(mFirstThumbnailStart != 0){
+                FIRST_THUMBNAIL.recordSince(mFirstThumbnailStart);
+                mFirstThumbnailStart = 0;
+            }
+        }
+
+        //already showing the thumbnail for this url, nothing to rebind
+        public boolean isShowing(String url){
+            return mBoundBitmap != null && url != null && url.equals(mBoundUrl);
+        }
+
+        //lets the cache reuse the old bitmap once no cell shows it
+        private void releaseBitmap(){
+            if(mBoundBitmap != null){
+                mPhotoCache.release(mBoundBitmap);
+                mBoundBitmap = null;
+                mBoundUrl = null;
+            }
+        }
+
         public void bindGalleryItem(GalleryItem galleryItem){
             mGalleryItem = galleryItem;
         }
 
         @Override
         public void onClick(View v) {
-            Intent i = PhotoPageActivity.newIntent(getActivity(), mGalleryItem.getPhotoPageUri());
+            if(mGalleryItem == null){
+                return;
+            }
+            Intent i = PhotoPageActivity.newIntent(getActivity(), mGalleryItem.getIdAsLong());
             startActivity(i);
         }
     }
 
+    /**
+     * Keeps its own snapshot of the items on screen. Appended pages go in as
+     * range inserts, pages swapped for ones with the same ids as range changes,
+     * anything else is diffed off the main thread and then applied.
+     */
     private class PhotoAdapter extends RecyclerView.Adapter<PhotoHolder>{
-        private List<GalleryItem> mGalleryItems;
-
-        public PhotoAdapter(List<GalleryItem> galleryItems){
+        //immutable, so holding on to it is enough for a snapshot
+        private GalleryItemStore mGalleryItems;
+        //bumped for every diff, only the newest one is applied
+        private int mDiffGeneration = 0;
+        private int mPendingDiffs = 0;
+        //where to scroll once the next diff is applied, -1 for nowhere
+        private int mPendingScrollPosition = -1;
+        private int mPendingScrollOffset = 0;
+
+        public PhotoAdapter(GalleryItemStore galleryItems){
             mGalleryItems = galleryItems;
+            setHasStableIds(true);
+        }
+
+        //null while the item's page is dropped
+        public GalleryItem getItem(int position){
+            return mGalleryItems.get(position);
+        }
+
+        public void appendItems(GalleryItemStore items, int positionStart, int itemCount){
+            if(mPendingDiffs > 0 || positionStart != mGalleryItems.size()){
+                submitItems(items);
+                return;
+            }
 
+            mGalleryItems = items;
+            notifyItemRangeInserted(positionStart, itemCount);
+        }
+
+        public void replaceItems(GalleryItemStore items, int positionStart, int oldItemCount,
+                                 int newItemCount){
+            if(mPendingDiffs > 0 || oldItemCount != newItemCount
+                    || items.size() != mGalleryItems.size()){
+                submitItems(items);
+                return;
+            }
+            for(int i = positionStart; i < positionStart + newItemCount; i++){
+                if(items.getId(i) != mGalleryItems.getId(i)){
+                    submitItems(items);
+                    return;
+                }
+            }
+
+            //a page dropped or reloaded in place
+            mGalleryItems = items;
+            notifyItemRangeChanged(positionStart, newItemCount);
+        }
+
+        //swaps in new items, then scrolls to the given position
+        public void submitItems(GalleryItemStore items, int scrollPosition, int scrollOffset){
+            mPendingScrollPosition = scrollPosition;
+            mPendingScrollOffset = scrollOffset;
+            submitItems(items);
+        }
+
+        public void submitItems(GalleryItemStore items){
+            final GalleryItemStore oldItems = mGalleryItems;
+            final GalleryItemStore newItems = items;
+            final int generation = ++mDiffGeneration;
+            final Handler mainHandler = new Handler();
+            mPendingDiffs++;
+
+            mDiffExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final DiffUtil.DiffResult result =
+                            DiffUtil.calculateDiff(new GalleryItemDiff(oldItems, newItems));
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mPendingDiffs--;
+                            if(generation != mDiffGeneration){
+                                return;
+                            }
+                            mGalleryItems = newItems;
+                            result.dispatchUpdatesTo(PhotoAdapter.this);
+
+                            if(mPendingScrollPosition >= 0){
+                                mPhotoLayoutManager.scrollToPositionWithOffset(
+                                        Math.min(mPendingScrollPosition,
+                                                Math.max(getItemCount() - 1, 0)),
+                                        mPendingScrollOffset);
+                                mPendingScrollPosition = -1;
+                            }
+                        }
+                    });
+                }
+            });
         }
 
         @NonNull
@@ -293,59 +560,85 @@ public class PhotoGalleryFragment extends VisibleFragment {
 
         @Override
         public void onBindViewHolder(@NonNull PhotoHolder photoHolder, int position) {
+            boolean traced = Metrics.beginSection("PhotoGalleryFragment.bind");
+            try{
+                bindItem(photoHolder, position);
+            }finally {
+                Metrics.endSection(traced);
+            }
+        }
+
+        private void bindItem(PhotoHolder photoHolder, int position){
             GalleryItem galleryItem = mGalleryItems.get(position);
             photoHolder.bindGalleryItem(galleryItem);
-            Drawable placeholder = getResources().getDrawable(R.drawable.bill_up_close);
+            if(galleryItem == null){
+                //dropped while far away, show the placeholder until it is back
+                photoHolder.bindDrawable(mPlaceholder);
+                mPageLoader.reloadPage(mGalleryItems.getPageNumber(position));
+                return;
+            }
 
-            photoHolder.bindDrawable(placeholder);
+            String url = thumbnailUrlFor(galleryItem);
+            if(photoHolder.isShowing(url)){
+                return;
+            }
+
+            photoHolder.bindDrawable(mPlaceholder);
 
             //check if we have the image cached already
-            if(mPhotoCache.get(galleryItem.getUrl()) == null) {
-                mThumbnailDownloader.queueThumbnail(photoHolder, galleryItem.getUrl());
+            Bitmap cached = mPhotoCache.get(url);
+            if(cached == null) {
+                mThumbnailDownloader.queueThumbnail(photoHolder, url);
             }else{
-                photoHolder.bindDrawable(mPhotoCache.get(galleryItem.getUrl()));
+                photoHolder.bindBitmap(cached, url);
             }
         }
 
+        @Override
+        public void onViewRecycled(@NonNull PhotoHolder photoHolder) {
+            //the cell scrolled away, its download should not hold up the visible ones
+            mThumbnailDownloader.cancel(photoHolder);
+            photoHolder.bindDrawable(mPlaceholder);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return mGalleryItems.getId(position);
+        }
+
         @Override
         public int getItemCount() {
             return mGalleryItems.size();
         }
     }
 
-    private class FetchItemsTask extends AsyncTask<Void, Void, List<GalleryItem>>{
-        private String mQuery;
+    private static class GalleryItemDiff extends DiffUtil.Callback {
+        private final GalleryItemStore mOldItems;
+        private final GalleryItemStore mNewItems;
 
-        public FetchItemsTask(String query){
-            mQuery = query;
+        GalleryItemDiff(GalleryItemStore oldItems, GalleryItemStore newItems){
+            mOldItems = oldItems;
+            mNewItems = newItems;
         }
 
         @Override
-        protected List<GalleryItem> doInBackground(Void... params){
-            updating = true;
-            int pageNumber = QueryPreferences.getStoredPage(getActivity());
-
-            if(mQuery == null){
-                return new FlickrFetcher().fetchRecentPhotos(pageNumber);
-            }else{
-                return new FlickrFetcher().searchPhotos(mQuery, pageNumber);
-            }
+        public int getOldListSize() {
+            return mOldItems.size();
         }
 
         @Override
-        protected void onPostExecute(List<GalleryItem> items){
-            updating = false;
-            if(mProgressBar != null) {
-                mProgressBar.setVisibility(View.GONE);
-            }
+        public int getNewListSize() {
+            return mNewItems.size();
+        }
 
-            if(mItems == null)
-            {
-                mItems = new ArrayList<GalleryItem>();
-            }
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldItems.getId(oldItemPosition) == mNewItems.getId(newItemPosition);
+        }
 
-            mItems.addAll(items);
-            setupAdapter();
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldItems.sameContents(oldItemPosition, mNewItems, newItemPosition);
         }
     }
 }
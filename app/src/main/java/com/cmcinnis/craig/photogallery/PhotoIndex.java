@@ -0,0 +1,194 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.cmcinnis.craig.photogallery.PhotoDbSchema.PageTable;
+import com.cmcinnis.craig.photogallery.PhotoDbSchema.PhotoTable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local copy of every result page we have fetched, stored per query and page
+ * so the gallery can draw straight from disk and then catch up with Flickr.
+ *
+ * The database is opened by the first call that needs it, which like every
+ * other call belongs on a worker thread: PageLoader's or the poll service's.
+ */
+public class PhotoIndex {
+    //recent photos change by the minute, search results much more slowly
+    private static final long RECENT_TTL_MS = TimeUnit.MINUTES.toMillis(15);
+    private static final long SEARCH_TTL_MS = TimeUnit.HOURS.toMillis(24);
+    //pages nobody has refreshed in this long are deleted
+    private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    //stored key for the recent photos feed, which has no query
+    private static final String RECENT_QUERY = "";
+
+    private static PhotoIndex sPhotoIndex;
+
+    private final PhotoBaseHelper mHelper;
+
+    public static synchronized PhotoIndex get(Context context){
+        if(sPhotoIndex == null){
+            sPhotoIndex = new PhotoIndex(context);
+        }
+        return sPhotoIndex;
+    }
+
+    private PhotoIndex(Context context){
+        mHelper = new PhotoBaseHelper(context.getApplicationContext());
+    }
+
+    //opens or upgrades the database on first use, the helper keeps it open after that
+    private SQLiteDatabase getDatabase(){
+        return mHelper.getWritableDatabase();
+    }
+
+    //the stored page in result order, or null if it was never stored
+    public List<GalleryItem> getPage(String query, int page){
+        if(getFetchedAt(query, page) == 0){
+            return null;
+        }
+
+        List<GalleryItem> items = new ArrayList<>();
+        PhotoCursorWrapper cursor = new PhotoCursorWrapper(getDatabase().query(
+                PhotoTable.NAME,
+                null,
+                PhotoTable.Cols.QUERY + " = ? and " + PhotoTable.Cols.PAGE + " = ?",
+                new String[]{ keyFor(query), String.valueOf(page) },
+                null,
+                null,
+                PhotoTable.Cols.POSITION
+        ));
+        try{
+            cursor.moveToFirst();
+            while(!cursor.isAfterLast()){
+                items.add(cursor.getGalleryItem());
+                cursor.moveToNext();
+            }
+        }finally {
+            cursor.close();
+        }
+        return items;
+    }
+
+    //replaces whatever was stored for this query and page
+    public void putPage(String query, int page, List<GalleryItem> items){
+        String[] whereArgs = new String[]{ keyFor(query), String.valueOf(page) };
+
+        SQLiteDatabase database = getDatabase();
+        database.beginTransaction();
+        try{
+            database.delete(PhotoTable.NAME,
+                    PhotoTable.Cols.QUERY + " = ? and " + PhotoTable.Cols.PAGE + " = ?",
+                    whereArgs);
+
+            for(int i = 0; i < items.size(); i++){
+                database.insert(PhotoTable.NAME, null,
+                        getContentValues(query, page, i, items.get(i)));
+            }
+
+            ContentValues pageValues = new ContentValues();
+            pageValues.put(PageTable.Cols.QUERY, keyFor(query));
+            pageValues.put(PageTable.Cols.PAGE, page);
+            pageValues.put(PageTable.Cols.FETCHED_AT, System.currentTimeMillis());
+            database.insertWithOnConflict(PageTable.NAME, null, pageValues,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+
+            if(page == 1){
+                pruneOlderThan(database, System.currentTimeMillis() - MAX_AGE_MS);
+            }
+            database.setTransactionSuccessful();
+        }finally {
+            database.endTransaction();
+        }
+    }
+
+    //wall clock time the page was stored, 0 if it never was
+    public long getFetchedAt(String query, int page){
+        Cursor cursor = getDatabase().query(
+                PageTable.NAME,
+                new String[]{ PageTable.Cols.FETCHED_AT },
+                PageTable.Cols.QUERY + " = ? and " + PageTable.Cols.PAGE + " = ?",
+                new String[]{ keyFor(query), String.valueOf(page) },
+                null,
+                null,
+                null
+        );
+        try{
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }finally {
+            cursor.close();
+        }
+    }
+
+    //every search whose first page is stored, with the time it was stored
+    public Map<String, Long> getStoredQueries(){
+        Map<String, Long> queries = new HashMap<>();
+        Cursor cursor = getDatabase().query(
+                PageTable.NAME,
+                new String[]{ PageTable.Cols.QUERY, PageTable.Cols.FETCHED_AT },
+                PageTable.Cols.PAGE + " = 1 and " + PageTable.Cols.QUERY + " != ?",
+                new String[]{ RECENT_QUERY },
+                null,
+                null,
+                null
+        );
+        try{
+            cursor.moveToFirst();
+            while(!cursor.isAfterLast()){
+                queries.put(cursor.getString(0), cursor.getLong(1));
+                cursor.moveToNext();
+            }
+        }finally {
+            cursor.close();
+        }
+        return queries;
+    }
+
+    //true when the page is missing or older than its query's time to live
+    public boolean isStale(String query, int page){
+        long fetchedAt = getFetchedAt(query, page);
+        long ttl = query == null ? RECENT_TTL_MS : SEARCH_TTL_MS;
+        return fetchedAt == 0 || System.currentTimeMillis() - fetchedAt > ttl;
+    }
+
+    private static void pruneOlderThan(SQLiteDatabase database, long cutoff){
+        String[] whereArgs = new String[]{ String.valueOf(cutoff) };
+        database.delete(PhotoTable.NAME,
+                "exists (select 1 from " + PageTable.NAME + " p where"
+                        + " p." + PageTable.Cols.QUERY + " = " + PhotoTable.NAME + "." + PhotoTable.Cols.QUERY
+                        + " and p." + PageTable.Cols.PAGE + " = " + PhotoTable.NAME + "." + PhotoTable.Cols.PAGE
+                        + " and p." + PageTable.Cols.FETCHED_AT + " < ?)",
+                whereArgs);
+        database.delete(PageTable.NAME, PageTable.Cols.FETCHED_AT + " < ?", whereArgs);
+    }
+
+    private static String keyFor(String query){
+        return query == null ? RECENT_QUERY : query;
+    }
+
+    private static ContentValues getContentValues(String query, int page, int position,
+                                                  GalleryItem item){
+        ContentValues values = new ContentValues();
+        values.put(PhotoTable.Cols.QUERY, keyFor(query));
+        values.put(PhotoTable.Cols.PAGE, page);
+        values.put(PhotoTable.Cols.POSITION, position);
+        values.put(PhotoTable.Cols.ID, item.getId());
+        values.put(PhotoTable.Cols.TITLE, item.getCaption());
+        values.put(PhotoTable.Cols.URL, item.getUrl());
+        values.put(PhotoTable.Cols.OWNER, item.getOwner());
+        values.put(PhotoTable.Cols.VARIANTS, PhotoVariant.encode(item.getVariants()));
+        values.put(PhotoTable.Cols.FARM, item.getFarm());
+        values.put(PhotoTable.Cols.SERVER, item.getServer());
+        values.put(PhotoTable.Cols.SECRET, item.getSecret());
+        return values;
+    }
+}
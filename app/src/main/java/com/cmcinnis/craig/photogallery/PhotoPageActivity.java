@@ -0,0 +1,153 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentStatePagerAdapter;
+import android.support.v4.view.ViewPager;
+import android.support.v7.app.AppCompatActivity;
+import android.util.DisplayMetrics;
+
+/**
+ * Full screen pager over the loaded gallery items.
+ *
+ * Owns one small ThumbnailDownloader shared by every page, decoding at screen
+ * size, and warms the disk cache for the pages the user is swiping towards.
+ */
+public class PhotoPageActivity extends AppCompatActivity implements PhotoPageFragment.Callbacks {
+    private static final String EXTRA_PHOTO_ID = "com.cmcinnis.craig.photogallery.photo_id";
+
+    //pages the pager keeps built on either side, these load in full anyway
+    private static final int OFFSCREEN_PAGES = 1;
+    //pages past those that only get their bytes fetched ahead of time
+    private static final int PREFETCH_PAGES = 2;
+
+    private ViewPager mViewPager;
+    private GalleryItemStore mGalleryItems;
+    private ThumbnailDownloader<PhotoPageFragment> mPhotoLoader;
+    private ThumbnailSizeSelector mSizeSelector;
+    private int mScreenWidth;
+    private int mScreenHeight;
+    private int mLastPosition;
+
+    public static Intent newIntent(Context context, long photoId){
+        Intent i = new Intent(context, PhotoPageActivity.class);
+        i.putExtra(EXTRA_PHOTO_ID, photoId);
+        return i;
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState){
+        //a snapshot, so pages arriving in the grid do not shift the pager under the user
+        mGalleryItems = PageLoader.get(this).getItems();
+        int startPosition = mGalleryItems.indexOfId(
+                getIntent().getLongExtra(EXTRA_PHOTO_ID, -1));
+        if(startPosition < 0){
+            //the process was restarted and the items are gone, do not restore pages
+            super.onCreate(null);
+            finish();
+            return;
+        }
+
+        //restored pages ask for the loader from their onCreate, inside super.onCreate
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        mScreenWidth = metrics.widthPixels;
+        mScreenHeight = metrics.heightPixels;
+        mSizeSelector = ThumbnailSizeSelector.get(this);
+
+        final BitmapMemoryCache photoCache = BitmapMemoryCache.get(this);
+        mPhotoLoader = new ThumbnailDownloader<>(new Handler(),
+                ThumbnailDiskCache.get(this), 2, 1);
+        mPhotoLoader.setTargetSize(mScreenWidth, mScreenHeight);
+        mPhotoLoader.setBitmapPool(photoCache.getBitmapPool());
+        mPhotoLoader.setThumbnailDownloadListener(
+                new ThumbnailDownloader.ThumbnailDownloadListener<PhotoPageFragment>() {
+                    @Override
+                    public void onThumbnailDownloaded(PhotoPageFragment target, Bitmap photo,
+                                                      String url) {
+                        photoCache.put(url, photo);
+                        target.bindPhoto(photo, url);
+                    }
+                });
+
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_photo_pager);
+
+        mViewPager = (ViewPager) findViewById(R.id.photo_view_pager);
+        mViewPager.setOffscreenPageLimit(OFFSCREEN_PAGES);
+        FragmentManager fragmentManager = getSupportFragmentManager();
+        mViewPager.setAdapter(new FragmentStatePagerAdapter(fragmentManager) {
+            @Override
+            public Fragment getItem(int position) {
+                GalleryItem item = getGalleryItem(position);
+                return PhotoPageFragment.newInstance(position, mGalleryItems.getId(position),
+                        item == null ? null : getPhotoUrl(item),
+                        item == null ? null : item.getPhotoPageUri());
+            }
+
+            @Override
+            public int getCount() {
+                return mGalleryItems.size();
+            }
+        });
+        mViewPager.addOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageSelected(int position) {
+                prefetchAhead(position, position >= mLastPosition ? 1 : -1);
+                mLastPosition = position;
+            }
+        });
+
+        mLastPosition = startPosition;
+        mViewPager.setCurrentItem(startPosition);
+        prefetchAhead(startPosition, 1);
+    }
+
+    @Override
+    protected void onDestroy(){
+        super.onDestroy();
+        if(mPhotoLoader != null){
+            mPhotoLoader.quit();
+        }
+    }
+
+    @Override
+    public GalleryItem getGalleryItem(int position){
+        if(position < 0 || position >= mGalleryItems.size()){
+            return null;
+        }
+        GalleryItem item = mGalleryItems.get(position);
+        if(item == null){
+            //dropped in the snapshot, the loader may have it back by now
+            GalleryItemStore current = PageLoader.get(this).getItems();
+            if(position < current.size() && current.getId(position) == mGalleryItems.getId(position)){
+                item = current.get(position);
+            }
+        }
+        return item;
+    }
+
+    @Override
+    public String getPhotoUrl(GalleryItem item){
+        return mSizeSelector.selectUrl(item, mScreenWidth, mScreenHeight);
+    }
+
+    @Override
+    public ThumbnailDownloader<PhotoPageFragment> getPhotoLoader(){
+        return mPhotoLoader;
+    }
+
+    //fetches the pages just past the built ones, in the direction of the swipe
+    private void prefetchAhead(int position, int direction){
+        for(int i = 1; i <= PREFETCH_PAGES; i++){
+            GalleryItem item = getGalleryItem(position + direction * (OFFSCREEN_PAGES + i));
+            if(item != null){
+                mPhotoLoader.prefetchThumbnail(getPhotoUrl(item));
+            }
+        }
+    }
+}
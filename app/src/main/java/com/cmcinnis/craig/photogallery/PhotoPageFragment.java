@@ -0,0 +1,195 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.app.Fragment;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.ProgressBar;
+
+import java.util.List;
+
+/**
+ * One photo of the pager. Shows the best rendition already in memory straight
+ * away, usually the grid thumbnail, and swaps in the screen sized one once it
+ * has been downloaded and decoded.
+ */
+public class PhotoPageFragment extends Fragment {
+    private static final String ARG_POSITION = "position";
+    private static final String ARG_PHOTO_ID = "photo_id";
+    private static final String ARG_PHOTO_URL = "photo_url";
+    private static final String ARG_PAGE_URI = "page_uri";
+
+    private Callbacks mCallbacks;
+    private BitmapMemoryCache mPhotoCache;
+    private GalleryItem mGalleryItem;
+    private String mPhotoUrl;
+    private Uri mPageUri;
+
+    private ImageView mPhotoImageView;
+    private ProgressBar mProgressBar;
+    private Bitmap mBoundBitmap;
+    private String mBoundUrl;
+
+    //implemented by the hosting activity
+    public interface Callbacks {
+        GalleryItem getGalleryItem(int position);
+        String getPhotoUrl(GalleryItem item);
+        ThumbnailDownloader<PhotoPageFragment> getPhotoLoader();
+    }
+
+    //the id and urls travel with the page, so a restored page works without the activity's items
+    public static PhotoPageFragment newInstance(int position, long photoId, String photoUrl,
+                                                Uri pageUri){
+        Bundle args = new Bundle();
+        args.putInt(ARG_POSITION, position);
+        args.putLong(ARG_PHOTO_ID, photoId);
+        args.putString(ARG_PHOTO_URL, photoUrl);
+        args.putParcelable(ARG_PAGE_URI, pageUri);
+
+        PhotoPageFragment fragment = new PhotoPageFragment();
+        fragment.setArguments(args);
+        return fragment;
+    }
+
+    @Override
+    public void onAttach(Context context){
+        super.onAttach(context);
+        mCallbacks = (Callbacks) context;
+    }
+
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState){
+        super.onCreate(savedInstanceState);
+        setHasOptionsMenu(true);
+
+        mPhotoCache = BitmapMemoryCache.get(getActivity());
+        Bundle args = getArguments();
+        mPhotoUrl = args.getString(ARG_PHOTO_URL);
+        mPageUri = args.getParcelable(ARG_PAGE_URI);
+
+        //only used for previews, so it may be missing or gone after a restore
+        GalleryItem item = mCallbacks.getGalleryItem(args.getInt(ARG_POSITION));
+        if(item != null && item.getIdAsLong() == args.getLong(ARG_PHOTO_ID)){
+            mGalleryItem = item;
+        }
+    }
+
+    @Nullable
+    @Override
+    public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container,
+                             @Nullable Bundle savedInstanceState){
+        View v = inflater.inflate(R.layout.fragment_photo_page, container, false);
+        mPhotoImageView = (ImageView) v.findViewById(R.id.photo_image_view);
+        mProgressBar = (ProgressBar) v.findViewById(R.id.photo_progress_bar);
+
+        if(mPhotoUrl == null){
+            mProgressBar.setVisibility(View.GONE);
+            return v;
+        }
+
+        Bitmap photo = mPhotoCache.get(mPhotoUrl);
+        if(photo != null){
+            bindPhoto(photo, mPhotoUrl);
+        }else{
+            showCachedPreview();
+            mCallbacks.getPhotoLoader().queueThumbnail(this, mPhotoUrl);
+        }
+
+        return v;
+    }
+
+    @Override
+    public void onDestroyView(){
+        super.onDestroyView();
+        //drops the request if it has not come back yet
+        mCallbacks.getPhotoLoader().cancel(this);
+        releaseBitmap();
+        mPhotoImageView = null;
+        mProgressBar = null;
+    }
+
+    @Override
+    public void onDetach(){
+        super.onDetach();
+        mCallbacks = null;
+    }
+
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater menuInflater){
+        super.onCreateOptionsMenu(menu, menuInflater);
+        menuInflater.inflate(R.menu.fragment_photo_page, menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item){
+        switch (item.getItemId()){
+            case R.id.menu_item_open_in_browser:
+                if(mPageUri != null){
+                    startActivity(new Intent(Intent.ACTION_VIEW, mPageUri));
+                }
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    //called on the main thread once the screen sized rendition is decoded
+    public void bindPhoto(Bitmap photo, String url){
+        if(mPhotoImageView == null){
+            return;
+        }
+        setBitmap(photo, url);
+        mProgressBar.setVisibility(View.GONE);
+    }
+
+    //largest rendition of this photo the grid or an earlier page left in memory
+    private void showCachedPreview(){
+        if(mGalleryItem == null){
+            return;
+        }
+        List<PhotoVariant> variants = mGalleryItem.getVariants();
+        for(int i = variants.size() - 1; i >= 0; i--){
+            Bitmap preview = mPhotoCache.get(variants.get(i).getUrl());
+            if(preview != null){
+                setBitmap(preview, variants.get(i).getUrl());
+                return;
+            }
+        }
+
+        Bitmap preview = mPhotoCache.get(mGalleryItem.getUrl());
+        if(preview != null){
+            setBitmap(preview, mGalleryItem.getUrl());
+        }
+    }
+
+    private void setBitmap(Bitmap bitmap, String url){
+        if(url.equals(mBoundUrl)){
+            return;
+        }
+        releaseBitmap();
+        //the cache must not recycle it while it is on screen
+        mPhotoCache.acquire(bitmap);
+        mBoundBitmap = bitmap;
+        mBoundUrl = url;
+        mPhotoImageView.setImageBitmap(bitmap);
+    }
+
+    private void releaseBitmap(){
+        if(mBoundBitmap != null){
+            mPhotoCache.release(mBoundBitmap);
+            mBoundBitmap = null;
+            mBoundUrl = null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.cmcinnis.craig.photogallery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One of the renditions Flickr serves for a photo, e.g. the 100px "t" or the
+ * 500px "m" size. Width and height are 0 when Flickr did not report them.
+ */
+public class PhotoVariant {
+    //the size extras we ask Flickr for, smallest first
+    public static final String[] SUFFIXES = { "t", "q", "s", "m" };
+
+    private final String mSuffix;
+    private final String mUrl;
+    private final int mWidth;
+    private final int mHeight;
+
+    public PhotoVariant(String suffix, String url, int width, int height){
+        mSuffix = suffix;
+        mUrl = url;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public String getSuffix() {
+        return mSuffix;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    //fills a width x height cell without being scaled up
+    public boolean covers(int width, int height){
+        return mWidth >= width && mHeight >= height;
+    }
+
+    //packs a list into one line for the photo index: suffix,width,height,url;...
+    static String encode(List<PhotoVariant> variants){
+        StringBuilder builder = new StringBuilder();
+        for(PhotoVariant variant : variants){
+            if(builder.length() > 0){
+                builder.append(';');
+            }
+            builder.append(variant.mSuffix).append(',')
+                    .append(variant.mWidth).append(',')
+                    .append(variant.mHeight).append(',')
+                    .append(variant.mUrl);
+        }
+        return builder.toString();
+    }
+
+    static List<PhotoVariant> decode(String encoded){
+        List<PhotoVariant> variants = new ArrayList<>();
+        if(encoded == null || encoded.isEmpty()){
+            return variants;
+        }
+
+        //urls never contain ';', but may contain ','
+        for(String part : encoded.split(";")){
+            String[] fields = part.split(",", 4);
+            if(fields.length != 4){
+                continue;
+            }
+            try{
+                variants.add(new PhotoVariant(fields[0], fields[3],
+                        Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+            }catch (NumberFormatException nfe){
+                //skip a damaged entry, the page is refetched when it goes stale
+            }
+        }
+        return variants;
+    }
+
+    @Override
+    public String toString(){
+        return mSuffix + " " + mWidth + "x" + mHeight;
+    }
+}
@@ -0,0 +1,106 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+
+public class PictureUtils {
+    private static final String TAG = "PictureUtils";
+
+    //decodes just large enough to cover reqWidth x reqHeight, never upscaling.
+    //pass a pool to draw into a recycled bitmap instead of allocating one
+    public static Bitmap decodeSampledBitmap(final byte[] data, int reqWidth, int reqHeight,
+                                             boolean preferRgb565, BitmapPool pool){
+        return decodeSampledBitmap(new Source() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+        }, reqWidth, reqHeight, preferRgb565, false, pool);
+    }
+
+    /**
+     * The same, reading straight from a file so its bytes never land on the
+     * heap. The descriptor must be seekable: BitmapFactory puts the offset
+     * back after each pass, which lets the bounds and pixel passes share it.
+     */
+    public static Bitmap decodeSampledBitmap(FileDescriptor fd, int reqWidth, int reqHeight,
+                                             boolean preferRgb565, BitmapPool pool){
+        return decodeSampledBitmap(fd, reqWidth, reqHeight, preferRgb565, false, pool);
+    }
+
+    //knownOpaque lets preferRgb565 apply to formats that may carry alpha, like webp
+    public static Bitmap decodeSampledBitmap(final FileDescriptor fd, int reqWidth,
+                                             int reqHeight, boolean preferRgb565,
+                                             boolean knownOpaque, BitmapPool pool){
+        return decodeSampledBitmap(new Source() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFileDescriptor(fd, null, options);
+            }
+        }, reqWidth, reqHeight, preferRgb565, knownOpaque, pool);
+    }
+
+    private interface Source {
+        Bitmap decode(BitmapFactory.Options options);
+    }
+
+    private static Bitmap decodeSampledBitmap(Source source, int reqWidth, int reqHeight,
+                                              boolean preferRgb565, boolean knownOpaque,
+                                              BitmapPool pool){
+        //read the dimensions without allocating pixels
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                reqWidth, reqHeight);
+        options.inPreferredConfig = preferRgb565 && (knownOpaque || isOpaque(options))
+                ? Bitmap.Config.RGB_565
+                : Bitmap.Config.ARGB_8888;
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+
+        if(pool != null){
+            int sampledWidth = divideRoundingUp(options.outWidth, options.inSampleSize);
+            int sampledHeight = divideRoundingUp(options.outHeight, options.inSampleSize);
+            options.inBitmap = pool.get(sampledWidth, sampledHeight, options.inPreferredConfig);
+        }
+
+        try{
+            return source.decode(options);
+        }catch (IllegalArgumentException iae){
+            //the decoder refused the recycled bitmap, give it back and allocate
+            Log.w(TAG, "Could not reuse bitmap", iae);
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return source.decode(options);
+        }
+    }
+
+    //largest power of two that keeps both sides at or above the requested size
+    public static int calculateInSampleSize(int srcWidth, int srcHeight,
+                                            int reqWidth, int reqHeight){
+        int inSampleSize = 1;
+        if(reqWidth <= 0 || reqHeight <= 0){
+            return inSampleSize;
+        }
+
+        while((srcWidth / (inSampleSize * 2)) >= reqWidth
+                && (srcHeight / (inSampleSize * 2)) >= reqHeight){
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static int divideRoundingUp(int value, int divisor){
+        return (value + divisor - 1) / divisor;
+    }
+
+    //jpegs have no alpha channel, so 16 bits per pixel loses nothing visible
+    private static boolean isOpaque(BitmapFactory.Options options){
+        return "image/jpeg".equals(options.outMimeType);
+    }
+}
@@ -0,0 +1,38 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.AsyncTask;
+import android.os.Build;
+
+//JobScheduler flavour of PollService, scheduled by PollServiceUtils on Lollipop and up
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class PollServiceJS extends JobService {
+    private PollTask mCurrentTask;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mCurrentTask = new PollTask();
+        mCurrentTask.execute(params);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if(mCurrentTask != null){
+            mCurrentTask.cancel(true);
+        }
+        return true;
+    }
+
+    private class PollTask extends AsyncTask<JobParameters, Void, Void> {
+        @Override
+        protected Void doInBackground(JobParameters... params) {
+            JobParameters jobParams = params[0];
+            PollServiceUtils.pollFlickr(PollServiceJS.this);
+            jobFinished(jobParams, false);
+            return null;
+        }
+    }
+}
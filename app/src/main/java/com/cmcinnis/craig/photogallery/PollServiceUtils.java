@@ -0,0 +1,234 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.app.Activity;
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The background poll shared by PollService (alarms, pre-Lollipop) and
+ * PollServiceJS (JobScheduler).
+ *
+ * Each poll asks for the first result page conditionally, counts the photos
+ * that are not in the SeenIdSet and only pages further while every photo on a
+ * page is new, so a quiet period costs one small request. The page's
+ * validators are saved with the seen ids, as the job usually starts in a
+ * fresh process.
+ */
+public class PollServiceUtils {
+    private static final String TAG = "PollServiceUtils";
+
+    public static final String ACTION_SHOW_NOTIFICATION =
+            "com.bignerdranch.android.photogallery.SHOW_NOTIFICATION";
+    public static final String PERM_PRIVATE = "com.cmcinnis.craig.photogallery.PRIVATE";
+    public static final String REQUEST_CODE = "REQUEST_CODE";
+    public static final String NOTIFICATION = "NOTIFICATION";
+
+    private static final String CHANNEL_ID = "new_pictures";
+    private static final int JOB_ID = 1;
+    private static final long POLL_INTERVAL_MS = TimeUnit.MINUTES.toMillis(15);
+    //how far back a poll may page before it gives up looking for known photos
+    private static final int MAX_POLL_PAGES = 3;
+
+    /**
+     * Polls once and returns how many new photos were found, or -1 if the
+     * poll could not run.
+     */
+    public static int pollFlickr(Context context){
+        if(!isNetworkAvailableAndConnected(context)){
+            return -1;
+        }
+
+        String query = QueryPreferences.getStoredQuery(context);
+        SeenIdSet seenIds = SeenIdSet.load(context);
+        if(query == null ? seenIds.getQuery() != null : !query.equals(seenIds.getQuery())){
+            seenIds.reset(query);
+        }
+        //the first poll of a query only records what is there
+        boolean baseline = seenIds.isEmpty();
+
+        FlickrFetcher fetcher = new FlickrFetcher();
+        List<GalleryItem> firstPage = null;
+        List<GalleryItem> newItems = new ArrayList<>();
+        try{
+            for(int page = 1; page <= MAX_POLL_PAGES; page++){
+                List<GalleryItem> items = fetcher.pollPhotos(query, page, seenIds);
+                if(items == null){
+                    Log.i(TAG, "Page " + page + " not modified");
+                    break;
+                }
+                if(page == 1){
+                    firstPage = items;
+                }
+
+                boolean reachedKnown = false;
+                for(GalleryItem item : items){
+                    if(seenIds.contains(item.getIdAsLong())){
+                        reachedKnown = true;
+                    }else{
+                        newItems.add(item);
+                    }
+                }
+                if(reachedKnown || baseline || items.isEmpty()){
+                    break;
+                }
+            }
+        }catch (IOException ioe){
+            Log.e(TAG, "Poll failed", ioe);
+            return -1;
+        }
+
+        if(firstPage != null && !firstPage.isEmpty()){
+            //the gallery opens on this page next time without a fetch
+            PhotoIndex.get(context).putPage(query, 1, firstPage);
+            QueryPreferences.setLastResultId(context, firstPage.get(0).getId());
+            //the job may be the last thing this process does
+            PreferenceStore.get(context).flush();
+        }
+
+        long[] ids = new long[newItems.size()];
+        for(int i = 0; i < ids.length; i++){
+            ids[i] = newItems.get(i).getIdAsLong();
+        }
+        seenIds.addAll(ids);
+        //a changed first page brings new validators even without new photos
+        if(firstPage != null || ids.length > 0){
+            try{
+                seenIds.save();
+            }catch (IOException ioe){
+                Log.e(TAG, "Could not save seen ids", ioe);
+            }
+        }
+
+        int newCount = baseline ? 0 : newItems.size();
+        if(newItems.isEmpty()){
+            Log.i(TAG, "Got no new results");
+            return 0;
+        }
+
+        if(newCount > 0){
+            Log.i(TAG, "Got " + newCount + " new results");
+            showNewResultsNotification(context, newCount);
+
+            //same job window, so the radio is already awake
+            if(QueryPreferences.isPrewarmEnabled(context) && ThumbnailPrewarmer.isAllowed(context)){
+                new ThumbnailPrewarmer(context, ThumbnailPrewarmer.DEFAULT_BYTE_BUDGET)
+                        .prewarm(newItems);
+            }
+        }
+        return newCount;
+    }
+
+    public static void setServiceAlarm(Context context, boolean isOn){
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
+            JobScheduler scheduler = (JobScheduler)
+                    context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            if(isOn){
+                JobInfo jobInfo = new JobInfo.Builder(JOB_ID,
+                        new ComponentName(context, PollServiceJS.class))
+                        .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                        .setPeriodic(POLL_INTERVAL_MS)
+                        .setPersisted(true)
+                        .build();
+                scheduler.schedule(jobInfo);
+            }else{
+                scheduler.cancel(JOB_ID);
+            }
+        }else{
+            Intent i = PollService.newIntent(context);
+            PendingIntent pi = PendingIntent.getService(context, 0, i, 0);
+            AlarmManager alarmManager = (AlarmManager)
+                    context.getSystemService(Context.ALARM_SERVICE);
+            if(isOn){
+                alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                        SystemClock.elapsedRealtime(), POLL_INTERVAL_MS, pi);
+            }else{
+                alarmManager.cancel(pi);
+                pi.cancel();
+            }
+        }
+
+        QueryPreferences.setAlarmOn(context, isOn);
+    }
+
+    public static boolean isServiceAlarmOn(Context context){
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
+            JobScheduler scheduler = (JobScheduler)
+                    context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            for(JobInfo jobInfo : scheduler.getAllPendingJobs()){
+                if(jobInfo.getId() == JOB_ID){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Intent i = PollService.newIntent(context);
+        PendingIntent pi = PendingIntent.getService(context, 0, i, PendingIntent.FLAG_NO_CREATE);
+        return pi != null;
+    }
+
+    private static void showNewResultsNotification(Context context, int newCount){
+        Resources resources = context.getResources();
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    resources.getString(R.string.channel_name),
+                    NotificationManager.IMPORTANCE_DEFAULT);
+            channel.setDescription(resources.getString(R.string.channel_description));
+            NotificationManager notificationManager = (NotificationManager)
+                    context.getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(channel);
+        }
+
+        Intent i = PhotoGalleryActivity.newIntent(context);
+        PendingIntent pi = PendingIntent.getActivity(context, 0, i, 0);
+
+        Notification notification = new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setTicker(resources.getString(R.string.new_pictures_title))
+                .setSmallIcon(android.R.drawable.ic_menu_report_image)
+                .setContentTitle(resources.getString(R.string.new_pictures_title))
+                .setContentText(resources.getQuantityString(R.plurals.new_pictures_count,
+                        newCount, newCount))
+                .setContentIntent(pi)
+                .setAutoCancel(true)
+                .build();
+
+        showBackgroundNotification(context, 0, notification);
+    }
+
+    //ordered so a visible gallery can cancel it before NotificationReceiver posts it
+    private static void showBackgroundNotification(Context context, int requestCode,
+                                                   Notification notification){
+        Intent i = new Intent(ACTION_SHOW_NOTIFICATION);
+        i.putExtra(REQUEST_CODE, requestCode);
+        i.putExtra(NOTIFICATION, notification);
+        context.sendOrderedBroadcast(i, PERM_PRIVATE, null, null,
+                Activity.RESULT_OK, null, null);
+    }
+
+    private static boolean isNetworkAvailableAndConnected(Context context){
+        ConnectivityManager cm = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        return cm.getActiveNetworkInfo() != null
+                && cm.getActiveNetworkInfo().isConnected();
+    }
+}
@@ -0,0 +1,238 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide copy of the default SharedPreferences, read from disk once on
+ * a background thread. PhotoGalleryApplication starts that read as the process
+ * comes up, and a read only waits for it if it has not finished yet.
+ *
+ * Reads come from memory. Writes update memory right away and are written
+ * back together on a background thread once they have settled for
+ * WRITE_DELAY_MS, with commit() so nothing waits on the apply() queue when
+ * an activity pauses. Listeners hear about changes on the main thread.
+ */
+public class PreferenceStore {
+    private static final String TAG = "PreferenceStore";
+    private static final long WRITE_DELAY_MS = 500;
+    //stands in for a removed value among the pending writes
+    private static final Object REMOVED = new Object();
+
+    private static PreferenceStore sPreferenceStore;
+
+    private final Context mContext;
+    //set by the load, which runs before any write on mWriter
+    private SharedPreferences mSharedPreferences;
+    private final Map<String, Object> mValues = new HashMap<>();
+    private boolean mLoaded = false;
+    //written to memory, not yet to disk
+    private final Map<String, Object> mPendingWrites = new HashMap<>();
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ScheduledExecutorService mWriter =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private ScheduledFuture<?> mScheduledWrite;
+    //keeps commits in the order their values were taken
+    private final Object mWriteLock = new Object();
+
+    public interface Listener {
+        void onPreferenceChanged(String key);
+    }
+
+    public static synchronized PreferenceStore get(Context context){
+        if(sPreferenceStore == null){
+            sPreferenceStore = new PreferenceStore(context.getApplicationContext());
+        }
+        return sPreferenceStore;
+    }
+
+    //starts reading the preferences off the main thread, call as early as possible
+    public static void preload(Context context){
+        get(context);
+    }
+
+    private PreferenceStore(Context context){
+        mContext = context;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    public void addListener(Listener listener){
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener){
+        mListeners.remove(listener);
+    }
+
+    public synchronized String getString(String key, String defValue){
+        awaitLoaded();
+        Object value = mValues.get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    public synchronized int getInt(String key, int defValue){
+        awaitLoaded();
+        Object value = mValues.get(key);
+        return value instanceof Integer ? (Integer) value : defValue;
+    }
+
+    public synchronized boolean getBoolean(String key, boolean defValue){
+        awaitLoaded();
+        Object value = mValues.get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    //a null value removes the key
+    public void putString(String key, String value){
+        put(key, value);
+    }
+
+    public void putInt(String key, int value){
+        put(key, value);
+    }
+
+    public void putBoolean(String key, boolean value){
+        put(key, value);
+    }
+
+    /**
+     * Writes everything pending to disk before returning. For work that may
+     * be the last thing the process does, like a background poll.
+     */
+    public void flush(){
+        synchronized (this){
+            if(mScheduledWrite != null){
+                mScheduledWrite.cancel(false);
+                mScheduledWrite = null;
+            }
+        }
+        writePending();
+    }
+
+    private void load(){
+        SharedPreferences sharedPreferences =
+                PreferenceManager.getDefaultSharedPreferences(mContext);
+        Map<String, ?> stored = sharedPreferences.getAll();
+        synchronized (this){
+            mSharedPreferences = sharedPreferences;
+            for(Map.Entry<String, ?> entry : stored.entrySet()){
+                //a value written before the load finished is newer
+                if(!mPendingWrites.containsKey(entry.getKey())){
+                    mValues.put(entry.getKey(), entry.getValue());
+                }
+            }
+            mLoaded = true;
+            notifyAll();
+        }
+    }
+
+    //caller holds the lock
+    private void awaitLoaded(){
+        boolean interrupted = false;
+        while(!mLoaded){
+            try{
+                wait();
+            }catch (InterruptedException ie){
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void put(final String key, Object value){
+        synchronized (this){
+            Object old = mValues.get(key);
+            //before the load a write can not tell if it changes anything, so it always goes out
+            if(mLoaded && (value == null ? old == null : value.equals(old))){
+                return;
+            }
+            if(value == null){
+                mValues.remove(key);
+            }else{
+                mValues.put(key, value);
+            }
+            mPendingWrites.put(key, value == null ? REMOVED : value);
+
+            //a burst of writes goes to disk once, after the last one
+            if(mScheduledWrite != null){
+                mScheduledWrite.cancel(false);
+            }
+            mScheduledWrite = mWriter.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    writePending();
+                }
+            }, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for(Listener listener : mListeners){
+                    listener.onPreferenceChanged(key);
+                }
+            }
+        });
+    }
+
+    private void writePending(){
+        synchronized (mWriteLock){
+            Map<String, Object> writes;
+            synchronized (this){
+                //flush() may come before the load
+                awaitLoaded();
+                if(mPendingWrites.isEmpty()){
+                    return;
+                }
+                writes = new HashMap<>(mPendingWrites);
+                mPendingWrites.clear();
+            }
+
+            SharedPreferences.Editor editor = mSharedPreferences.edit();
+            for(Map.Entry<String, Object> write : writes.entrySet()){
+                Object value = write.getValue();
+                if(value == REMOVED){
+                    editor.remove(write.getKey());
+                }else if(value instanceof String){
+                    editor.putString(write.getKey(), (String) value);
+                }else if(value instanceof Integer){
+                    editor.putInt(write.getKey(), (Integer) value);
+                }else if(value instanceof Boolean){
+                    editor.putBoolean(write.getKey(), (Boolean) value);
+                }
+            }
+            if(!editor.commit()){
+                Log.e(TAG, "Failed to write " + writes.keySet());
+            }
+        }
+    }
+}
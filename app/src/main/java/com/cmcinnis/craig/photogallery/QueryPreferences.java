@@ -1,59 +1,69 @@
 package com.cmcinnis.craig.photogallery;
 
 import android.content.Context;
-import android.preference.PreferenceManager;
 
+import java.util.Locale;
+
+//typed keys over PreferenceStore, listen there for changes to these keys
 public class QueryPreferences {
-    private static final String PREF_SEARCH_QUERY = "searchQuery";
-    private static final String PREF_LAST_RESULT_ID = "lastResultId";
-    private static final String PREF_PAGE_NUMBER = "pageNumber";
-    private static final String PREF_IS_ALARM_ON = "isAlarmOn";
+    public static final String PREF_SEARCH_QUERY = "searchQuery";
+    public static final String PREF_LAST_RESULT_ID = "lastResultId";
+    public static final String PREF_PAGE_NUMBER = "pageNumber";
+    public static final String PREF_IS_ALARM_ON = "isAlarmOn";
+    public static final String PREF_PREWARM_THUMBNAILS = "prewarmThumbnails";
 
+    //stored normalized, see normalizeQuery
     public static String getStoredQuery(Context context){
-        return PreferenceManager.getDefaultSharedPreferences(context)
-                .getString(PREF_SEARCH_QUERY, null);
+        return normalizeQuery(PreferenceStore.get(context).getString(PREF_SEARCH_QUERY, null));
     }
 
     public static void setStoredQuery(Context context, String query){
-        PreferenceManager.getDefaultSharedPreferences(context)
-                .edit()
-                .putString(PREF_SEARCH_QUERY, query)
-                .apply();
+        PreferenceStore.get(context).putString(PREF_SEARCH_QUERY, normalizeQuery(query));
+    }
+
+    /**
+     * The one spelling of a search used for fetching, the stored pages and
+     * completion: trimmed and lower case, so "Cats " and "cats" share their
+     * results. Flickr's text search ignores case anyway. Blank means the
+     * recent feed, which is null.
+     */
+    public static String normalizeQuery(String query){
+        if(query == null){
+            return null;
+        }
+        String normalized = query.trim().toLowerCase(Locale.US);
+        return normalized.isEmpty() ? null : normalized;
     }
 
     public static int getStoredPage(Context context){
-        return PreferenceManager.getDefaultSharedPreferences(context)
-                .getInt(PREF_PAGE_NUMBER, 1);
+        return PreferenceStore.get(context).getInt(PREF_PAGE_NUMBER, 1);
     }
 
     public static void setStoredPage(Context context, int page){
-        PreferenceManager.getDefaultSharedPreferences(context)
-                .edit()
-                .putInt(PREF_PAGE_NUMBER, page)
-                .apply();
+        PreferenceStore.get(context).putInt(PREF_PAGE_NUMBER, page);
     }
 
     public static String getLastResultId(Context context){
-        return PreferenceManager.getDefaultSharedPreferences(context)
-                .getString(PREF_LAST_RESULT_ID, null);
+        return PreferenceStore.get(context).getString(PREF_LAST_RESULT_ID, null);
     }
 
     public static void setLastResultId(Context context, String lastResultId){
-        PreferenceManager.getDefaultSharedPreferences(context)
-                .edit()
-                .putString(PREF_LAST_RESULT_ID, lastResultId)
-                .apply();
+        PreferenceStore.get(context).putString(PREF_LAST_RESULT_ID, lastResultId);
     }
 
     public static void setAlarmOn(Context context, boolean isOn){
-        PreferenceManager.getDefaultSharedPreferences(context)
-                .edit()
-                .putBoolean(PREF_IS_ALARM_ON, isOn)
-                .apply();
+        PreferenceStore.get(context).putBoolean(PREF_IS_ALARM_ON, isOn);
     }
 
     public static boolean isAlarmOn(Context context){
-        return PreferenceManager.getDefaultSharedPreferences(context)
-                .getBoolean(PREF_IS_ALARM_ON, false);
+        return PreferenceStore.get(context).getBoolean(PREF_IS_ALARM_ON, false);
+    }
+
+    public static boolean isPrewarmEnabled(Context context){
+        return PreferenceStore.get(context).getBoolean(PREF_PREWARM_THUMBNAILS, true);
+    }
+
+    public static void setPrewarmEnabled(Context context, boolean enabled){
+        PreferenceStore.get(context).putBoolean(PREF_PREWARM_THUMBNAILS, enabled);
     }
 }
@@ -0,0 +1,97 @@
+package com.cmcinnis.craig.photogallery;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Past search queries, looked up by prefix as the user types.
+ *
+ * Every node remembers the most recently used query below it, so completing a
+ * prefix takes one step per character however many queries are stored.
+ * Queries go through QueryPreferences.normalizeQuery, and so do completions.
+ */
+public class QueryTrie {
+    private final Node mRoot = new Node();
+    private int mSize = 0;
+
+    //adds the query, or moves it up if it was used before
+    public synchronized void add(String query, long usedAt){
+        String key = keyFor(query);
+        if(key.isEmpty()){
+            return;
+        }
+
+        Node node = mRoot;
+        node.offer(key, usedAt);
+        for(int i = 0; i < key.length(); i++){
+            node = node.childFor(key.charAt(i));
+            node.offer(key, usedAt);
+        }
+        if(node.mQuery == null){
+            mSize++;
+        }
+        if(node.mQuery == null || usedAt >= node.mUsedAt){
+            node.mQuery = key;
+            node.mUsedAt = usedAt;
+        }
+    }
+
+    /**
+     * The query typed in full if it was used before, otherwise the most
+     * recently used one starting with prefix. Null when nothing matches.
+     */
+    public synchronized String complete(String prefix){
+        String key = keyFor(prefix);
+        if(key.isEmpty()){
+            return null;
+        }
+
+        Node node = mRoot;
+        for(int i = 0; i < key.length() && node != null; i++){
+            node = node.mChildren == null ? null : node.mChildren.get(key.charAt(i));
+        }
+        if(node == null){
+            return null;
+        }
+        return node.mQuery != null ? node.mQuery : node.mBest;
+    }
+
+    public synchronized int size(){
+        return mSize;
+    }
+
+    private static String keyFor(String query){
+        String normalized = QueryPreferences.normalizeQuery(query);
+        return normalized == null ? "" : normalized;
+    }
+
+    private static class Node {
+        //created on first use, most nodes have a single child
+        Map<Character, Node> mChildren;
+        //a query that ends here
+        String mQuery;
+        long mUsedAt;
+        //the most recently used query at or below this node
+        String mBest;
+        long mBestUsedAt;
+
+        Node childFor(char c){
+            if(mChildren == null){
+                mChildren = new HashMap<>(2);
+            }
+            Node child = mChildren.get(c);
+            if(child == null){
+                child = new Node();
+                mChildren.put(c, child);
+            }
+            return child;
+        }
+
+        void offer(String query, long usedAt){
+            if(mBest == null || usedAt >= mBestUsedAt){
+                mBest = query;
+                mBestUsedAt = usedAt;
+            }
+        }
+    }
+}
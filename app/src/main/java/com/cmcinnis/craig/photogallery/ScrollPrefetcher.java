@@ -0,0 +1,77 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+/**
+ * Scroll listener that asks for the next page while the user is still a few
+ * rows from the end, and for thumbnails one screen ahead of the visible grid.
+ * Faster scrolling widens how far ahead it looks.
+ */
+public class ScrollPrefetcher extends RecyclerView.OnScrollListener {
+    //rows left below the viewport when the next page is requested
+    private static final int BASE_PREFETCH_ROWS = 4;
+    private static final int MAX_PREFETCH_ROWS = 12;
+    //pixels per scroll callback that add one more row of look ahead
+    private static final int DY_PER_EXTRA_ROW = 40;
+
+    private GridLayoutManager mLayoutManager;
+    private Callbacks mCallbacks;
+
+    private int mSmoothedDy = 0;
+    private int mPrefetchedThrough = RecyclerView.NO_POSITION;
+
+    public interface Callbacks {
+        int getItemCount();
+        boolean isLoadingPage();
+        void onLoadNextPage();
+        void onPrefetchThumbnails(int fromPosition, int toPosition);
+    }
+
+    public ScrollPrefetcher(GridLayoutManager layoutManager, Callbacks callbacks){
+        mLayoutManager = layoutManager;
+        mCallbacks = callbacks;
+    }
+
+    //call when the list is replaced, e.g. for a new search
+    public void reset(){
+        mSmoothedDy = 0;
+        mPrefetchedThrough = RecyclerView.NO_POSITION;
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        super.onScrolled(recyclerView, dx, dy);
+
+        //weighted average so a single jumpy frame does not swing the window
+        mSmoothedDy = (mSmoothedDy * 3 + dy) / 4;
+        if(dy <= 0){
+            return;
+        }
+
+        int firstVisibleItem = mLayoutManager.findFirstVisibleItemPosition();
+        int lastVisibleItem = mLayoutManager.findLastVisibleItemPosition();
+        if(lastVisibleItem == RecyclerView.NO_POSITION){
+            return;
+        }
+
+        int itemCount = mCallbacks.getItemCount();
+        int spanCount = mLayoutManager.getSpanCount();
+        int rowsAhead = Math.min(BASE_PREFETCH_ROWS + mSmoothedDy / DY_PER_EXTRA_ROW,
+                MAX_PREFETCH_ROWS);
+
+        int itemsRemaining = itemCount - 1 - lastVisibleItem;
+        if(itemsRemaining <= rowsAhead * spanCount && !mCallbacks.isLoadingPage()){
+            mCallbacks.onLoadNextPage();
+        }
+
+        //warm the next screen's worth of thumbnails
+        int screenSize = lastVisibleItem - firstVisibleItem + 1;
+        int from = Math.max(lastVisibleItem + 1, mPrefetchedThrough + 1);
+        int to = Math.min(itemCount - 1, lastVisibleItem + screenSize);
+        if(from <= to){
+            mCallbacks.onPrefetchThumbnails(from, to);
+            mPrefetchedThrough = to;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The most recent photo ids the poller has seen for one query, kept as a
+ * sorted long array for lookups plus a ring in arrival order for eviction.
+ * A thousand ids take 16 KB in memory and 8 KB on disk.
+ *
+ * Also keeps the validators of the query's first page, so a poll in a fresh
+ * process can still ask for it conditionally.
+ */
+public class SeenIdSet {
+    private static final String TAG = "SeenIdSet";
+    private static final String FILE_NAME = "seen_ids";
+    private static final int VERSION = 2;
+    //ids only, no validators
+    private static final int VERSION_IDS = 1;
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private final File mFile;
+    private final int mCapacity;
+    private String mQuery;
+    private HttpTransport.Validators mPageValidators;
+    //ids in arrival order, mHead is the oldest once the ring is full
+    private final long[] mRing;
+    private int mHead = 0;
+    private int mSize = 0;
+    //the same ids, sorted for binary search
+    private long[] mSorted = new long[0];
+
+    public static SeenIdSet load(Context context){
+        return load(new File(context.getFilesDir(), FILE_NAME), DEFAULT_CAPACITY);
+    }
+
+    static SeenIdSet load(File file, int capacity){
+        SeenIdSet set = new SeenIdSet(file, capacity);
+        DataInputStream in = null;
+        try{
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int version = in.readInt();
+            if(version != VERSION && version != VERSION_IDS){
+                return set;
+            }
+            String query = in.readUTF();
+            set.mQuery = query.isEmpty() ? null : query;
+            if(version == VERSION){
+                String eTag = in.readUTF();
+                String lastModified = in.readUTF();
+                if(!eTag.isEmpty() || !lastModified.isEmpty()){
+                    set.mPageValidators = new HttpTransport.Validators(
+                            eTag.isEmpty() ? null : eTag,
+                            lastModified.isEmpty() ? null : lastModified);
+                }
+            }
+            int count = in.readInt();
+            long[] ids = new long[count];
+            for(int i = 0; i < count; i++){
+                ids[i] = in.readLong();
+            }
+            set.addAll(ids);
+        }catch (FileNotFoundException fnfe){
+            //nothing polled yet
+        }catch (IOException ioe){
+            Log.w(TAG, "Discarding unreadable " + file, ioe);
+            set.reset(null);
+        }finally {
+            closeQuietly(in);
+        }
+        return set;
+    }
+
+    private SeenIdSet(File file, int capacity){
+        mFile = file;
+        mCapacity = capacity;
+        mRing = new long[capacity];
+    }
+
+    public String getQuery(){
+        return mQuery;
+    }
+
+    //validators of the first page of the query, null before the first poll
+    public HttpTransport.Validators getPageValidators(){
+        return mPageValidators;
+    }
+
+    public void setPageValidators(HttpTransport.Validators validators){
+        mPageValidators = validators;
+    }
+
+    //forgets every id, the poller calls this when the search changes
+    public void reset(String query){
+        mQuery = query;
+        mPageValidators = null;
+        mHead = 0;
+        mSize = 0;
+        mSorted = new long[0];
+    }
+
+    public boolean isEmpty(){
+        return mSize == 0;
+    }
+
+    public int size(){
+        return mSize;
+    }
+
+    public boolean contains(long id){
+        return Arrays.binarySearch(mSorted, id) >= 0;
+    }
+
+    //adds ids not yet in the set, dropping the oldest ones past capacity
+    public void addAll(long[] ids){
+        Set<Long> added = new HashSet<>();
+        for(long id : ids){
+            if(contains(id) || !added.add(id)){
+                continue;
+            }
+            if(mSize < mCapacity){
+                mRing[(mHead + mSize) % mCapacity] = id;
+                mSize++;
+            }else{
+                mRing[mHead] = id;
+                mHead = (mHead + 1) % mCapacity;
+            }
+        }
+        if(!added.isEmpty()){
+            rebuildSorted();
+        }
+    }
+
+    public void save() throws IOException{
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try{
+            out.writeInt(VERSION);
+            out.writeUTF(mQuery == null ? "" : mQuery);
+            out.writeUTF(mPageValidators == null || mPageValidators.getETag() == null
+                    ? "" : mPageValidators.getETag());
+            out.writeUTF(mPageValidators == null || mPageValidators.getLastModified() == null
+                    ? "" : mPageValidators.getLastModified());
+            out.writeInt(mSize);
+            for(int i = 0; i < mSize; i++){
+                out.writeLong(mRing[(mHead + i) % mCapacity]);
+            }
+        }finally {
+            out.close();
+        }
+        if(!temp.renameTo(mFile)){
+            throw new IOException("Could not replace " + mFile);
+        }
+    }
+
+    private void rebuildSorted(){
+        long[] sorted = new long[mSize];
+        for(int i = 0; i < mSize; i++){
+            sorted[i] = mRing[(mHead + i) % mCapacity];
+        }
+        Arrays.sort(sorted);
+        mSorted = sorted;
+    }
+
+    private static void closeQuietly(DataInputStream in){
+        if(in != null){
+            try{
+                in.close();
+            }catch (IOException ioe){
+                //ignore
+            }
+        }
+    }
+}
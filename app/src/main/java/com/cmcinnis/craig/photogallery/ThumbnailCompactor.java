@@ -0,0 +1,116 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Shrinks disk cache entries down to the grid cell they are drawn in.
+ *
+ * A thumbnail is decoded again, cropped and scaled the way the cell's
+ * centerCrop shows it, and stored as lossy WebP when that comes out smaller
+ * than what Flickr served. More thumbnails then fit the disk budget, and each
+ * one decodes at its final size without sampling.
+ */
+public class ThumbnailCompactor {
+    private static final String TAG = "ThumbnailCompactor";
+
+    static final int WEBP_QUALITY = 80;
+
+    private static final Metrics.Histogram COMPACT_TIME = Metrics.histogram("thumbnail.compact");
+    private static final Metrics.Counter COMPACTED = Metrics.counter("thumbnail.compacted");
+
+    private final ThumbnailDiskCache mDiskCache;
+
+    public ThumbnailCompactor(ThumbnailDiskCache diskCache){
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * Re-encodes the entry for url at width x height. Returns true if the
+     * entry was replaced, false if it is missing, already compact, or would
+     * not get any smaller.
+     */
+    public boolean compact(String url, int width, int height){
+        if(width <= 0 || height <= 0 || mDiskCache.getEncoding(url) != null){
+            return false;
+        }
+        long length = mDiskCache.lengthOf(url);
+        FileInputStream in = mDiskCache.openQuietly(url);
+        if(in == null){
+            return false;
+        }
+
+        long start = Metrics.startTimer();
+        boolean traced = Metrics.beginSection("ThumbnailCompactor.compact");
+        Bitmap scaled;
+        int originalWidth;
+        int originalHeight;
+        try{
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(in.getFD(), null, bounds);
+            //only photos without alpha, so every re-encode decodes at 16 bits per pixel
+            if(!"image/jpeg".equals(bounds.outMimeType)){
+                return false;
+            }
+            originalWidth = bounds.outWidth;
+            originalHeight = bounds.outHeight;
+
+            Bitmap decoded = PictureUtils.decodeSampledBitmap(in.getFD(), width, height,
+                    true, null);
+            if(decoded == null){
+                return false;
+            }
+            scaled = cropToFill(decoded, width, height);
+            if(scaled != decoded){
+                decoded.recycle();
+            }
+        }catch (IOException ioe){
+            Log.w(TAG, "Could not read " + url, ioe);
+            return false;
+        }finally {
+            try{
+                in.close();
+            }catch (IOException ignored){
+            }
+            Metrics.endSection(traced);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(length, 0));
+        boolean encoded = scaled.compress(Bitmap.CompressFormat.WEBP, WEBP_QUALITY, out);
+        ThumbnailDiskCache.Encoding encoding = new ThumbnailDiskCache.Encoding(url,
+                scaled.getWidth(), scaled.getHeight(), originalWidth, originalHeight);
+        scaled.recycle();
+        if(!encoded || out.size() >= length){
+            return false;
+        }
+
+        if(!mDiskCache.putEncoded(url, length, out.toByteArray(), encoding)){
+            return false;
+        }
+        COMPACTED.increment();
+        COMPACT_TIME.recordSince(start);
+        Log.d(TAG, "Compacted " + url + " from " + length + " to " + out.size() + " bytes");
+        return true;
+    }
+
+    //the part of bitmap a centerCrop cell of width x height shows, never upscaled
+    static Bitmap cropToFill(Bitmap bitmap, int width, int height){
+        int srcWidth = bitmap.getWidth();
+        int srcHeight = bitmap.getHeight();
+        float scale = Math.min(1f, Math.max((float) width / srcWidth, (float) height / srcHeight));
+        int cropWidth = Math.min(srcWidth, Math.round(width / scale));
+        int cropHeight = Math.min(srcHeight, Math.round(height / scale));
+
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        return Bitmap.createBitmap(bitmap, (srcWidth - cropWidth) / 2, (srcHeight - cropHeight) / 2,
+                cropWidth, cropHeight, matrix, true);
+    }
+}
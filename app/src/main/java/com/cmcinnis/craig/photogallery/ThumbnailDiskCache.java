@@ -0,0 +1,598 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded on-disk cache of downloaded thumbnail bytes, keyed by photo url.
+ *
+ * Every change is appended to a journal file so the LRU order and entry sizes
+ * survive process death. Entries are written to a temp file and renamed into
+ * place, so a crash mid-write never leaves a half-written thumbnail behind.
+ *
+ * put() and openForRead() stream bytes between the network, the
+ * file and BitmapFactory without ever holding a whole thumbnail on the heap.
+ *
+ * An entry may later be swapped for a compact re-encode with putEncoded(),
+ * the journal then also records the size it was encoded at and the original
+ * url and dimensions, see getEncoding().
+ */
+public class ThumbnailDiskCache {
+    private static final String TAG = "ThumbnailDiskCache";
+
+    private static final String CACHE_DIR_NAME = "thumbnails";
+    private static final long DEFAULT_MAX_SIZE = 20 * 1024 * 1024;
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    static final String MAGIC = "photogallery.ThumbnailDiskCache";
+    static final String VERSION = "1";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    private static final String ENCODED = "ENCODED";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    //rebuild the journal once it holds this many redundant lines
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    //streaming writes copy through one buffer per thread instead of one per entry
+    private static final ThreadLocal<byte[]> sCopyBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+    //keeps temp files of concurrent writes to the same url apart
+    private static final AtomicLong sTempCounter = new AtomicLong();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static ThumbnailDiskCache sThumbnailDiskCache;
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final long mMaxSize;
+
+    //access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<>(0, 0.75f, true);
+    //entries that hold a re-encode rather than the downloaded bytes
+    private final Map<String, Encoding> mEncodings = new HashMap<>();
+    private long mSize = 0;
+    private int mRedundantOpCount = 0;
+    private Writer mJournalWriter;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    private final AtomicLong mBytesServed = new AtomicLong();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+
+    /**
+     * How an entry was re-encoded: the size it holds now, and the url and
+     * dimensions of the image it was made from.
+     */
+    public static final class Encoding {
+        final String mUrl;
+        final int mWidth;
+        final int mHeight;
+        final int mOriginalWidth;
+        final int mOriginalHeight;
+
+        public Encoding(String url, int width, int height, int originalWidth, int originalHeight){
+            mUrl = url;
+            mWidth = width;
+            mHeight = height;
+            mOriginalWidth = originalWidth;
+            mOriginalHeight = originalHeight;
+        }
+
+        //whether a cell of this size draws it without losing detail
+        public boolean covers(int width, int height){
+            return (mWidth >= width || mWidth >= mOriginalWidth)
+                    && (mHeight >= height || mHeight >= mOriginalHeight);
+        }
+
+        @Override
+        public String toString(){
+            return mWidth + "x" + mHeight + " from " + mOriginalWidth + "x" + mOriginalHeight
+                    + " " + mUrl;
+        }
+    }
+
+    public static synchronized ThumbnailDiskCache get(Context context){
+        if(sThumbnailDiskCache == null){
+            File directory = new File(context.getApplicationContext().getCacheDir(), CACHE_DIR_NAME);
+            sThumbnailDiskCache = new ThumbnailDiskCache(directory, DEFAULT_MAX_SIZE);
+        }
+        return sThumbnailDiskCache;
+    }
+
+    ThumbnailDiskCache(File directory, long maxSize){
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mMaxSize = maxSize;
+
+        try{
+            open();
+        }catch (IOException ioe){
+            Log.e(TAG, "Failed to open disk cache, starting empty", ioe);
+            deleteContents(mDirectory);
+            mEntries.clear();
+            mSize = 0;
+            try{
+                rebuildJournal();
+            }catch (IOException e){
+                Log.e(TAG, "Disk cache disabled", e);
+            }
+        }
+    }
+
+    /**
+     * The entry for url opened for reading, or null on a miss. Pass getFD()
+     * to BitmapFactory to decode without copying the file onto the heap. The
+     * caller closes the stream; the entry may be evicted meanwhile, the open
+     * file stays readable.
+     */
+    public synchronized FileInputStream openForRead(String url){
+        String key = keyFor(url);
+        Long length = mEntries.get(key);
+        if(length == null){
+            mMissCount.incrementAndGet();
+            return null;
+        }
+
+        FileInputStream in = openEntry(key, length);
+        if(in == null){
+            Log.w(TAG, "Dropping unreadable entry for " + url);
+            removeEntry(key);
+            mMissCount.incrementAndGet();
+            return null;
+        }
+
+        mHitCount.incrementAndGet();
+        mBytesServed.addAndGet(length);
+        appendJournal(READ + ' ' + key);
+        return in;
+    }
+
+    //like openForRead, for background work that should not count or touch the entry
+    public synchronized FileInputStream openQuietly(String url){
+        String key = keyFor(url);
+        Long length = mEntries.get(key);
+        return length == null ? null : openEntry(key, length);
+    }
+
+    //null unless the entry for url is a re-encode
+    public synchronized Encoding getEncoding(String url){
+        return mEncodings.get(keyFor(url));
+    }
+
+    //length of the entry for url, -1 on a miss
+    public synchronized long lengthOf(String url){
+        Long length = mEntries.get(keyFor(url));
+        return length == null ? -1 : length;
+    }
+
+    //whether put() stores anything, false once the cache failed to open
+    public synchronized boolean isWritable(){
+        return mJournalWriter != null;
+    }
+
+    public synchronized boolean contains(String url){
+        return mEntries.containsKey(keyFor(url));
+    }
+
+    /**
+     * Copies in to a new entry for url as the bytes arrive, reading it to the
+     * end, and returns the entry opened for reading. The copy runs outside the
+     * cache lock, so a slow download never holds up other reads. Returns null
+     * without touching in if the cache is not writable. in is not closed.
+     */
+    public FileInputStream put(String url, InputStream in) throws IOException{
+        if(!isWritable()){
+            return null;
+        }
+
+        String key = keyFor(url);
+        File temp = tempFileFor(key);
+        long length = 0;
+        FileOutputStream out = new FileOutputStream(temp);
+        try{
+            byte[] buffer = sCopyBuffer.get();
+            int bytesRead;
+            while((bytesRead = in.read(buffer)) > 0){
+                out.write(buffer, 0, bytesRead);
+                length += bytesRead;
+            }
+            out.getFD().sync();
+        }catch (IOException ioe){
+            closeQuietly(out);
+            temp.delete();
+            throw ioe;
+        }
+        closeQuietly(out);
+
+        synchronized (this){
+            if(!commit(url, key, temp, length)){
+                return null;
+            }
+            return openEntry(key, length);
+        }
+    }
+
+    //copies the whole array, see put(String, InputStream) for the streaming version
+    /**
+     * Replaces the entry for url with a re-encode of it. Does nothing if the
+     * entry is gone or no longer expectedLength bytes long, since then bytes
+     * was made from something that is not there anymore.
+     */
+    public boolean putEncoded(String url, long expectedLength, byte[] bytes, Encoding encoding){
+        if(!isWritable()){
+            return false;
+        }
+
+        String key = keyFor(url);
+        File temp = tempFileFor(key);
+        FileOutputStream out = null;
+        try{
+            out = new FileOutputStream(temp);
+            out.write(bytes);
+            out.getFD().sync();
+        }catch (IOException ioe){
+            Log.e(TAG, "Failed to write encoded entry for " + url, ioe);
+            closeQuietly(out);
+            temp.delete();
+            return false;
+        }
+        closeQuietly(out);
+
+        synchronized (this){
+            Long length = mEntries.get(key);
+            if(length == null || length != expectedLength){
+                temp.delete();
+                return false;
+            }
+            if(!commit(url, key, temp, bytes.length)){
+                return false;
+            }
+            mEncodings.put(key, encoding);
+            appendJournal(encodedLine(key, encoding));
+            mBytesSaved.addAndGet(expectedLength - bytes.length);
+            return true;
+        }
+    }
+
+    public synchronized void remove(String url){
+        removeEntry(keyFor(url));
+    }
+
+    public synchronized long size(){
+        return mSize;
+    }
+
+    public long maxSize(){
+        return mMaxSize;
+    }
+
+    public long hitCount(){
+        return mHitCount.get();
+    }
+
+    public long missCount(){
+        return mMissCount.get();
+    }
+
+    public long evictionCount(){
+        return mEvictionCount.get();
+    }
+
+    //bytes we did not have to pull over the network
+    public long bytesServed(){
+        return mBytesServed.get();
+    }
+
+    //bytes freed by replacing entries with re-encodes
+    public long bytesSaved(){
+        return mBytesSaved.get();
+    }
+
+    @Override
+    public synchronized String toString(){
+        long requests = mHitCount.get() + mMissCount.get();
+        int hitPercent = requests == 0 ? 0 : (int) (100 * mHitCount.get() / requests);
+        return String.format("ThumbnailDiskCache[size=%d,maxSize=%d,entries=%d,encoded=%d,"
+                        + "hits=%d,misses=%d,hitRate=%d%%,evictions=%d,bytesServed=%d,"
+                        + "bytesSaved=%d]",
+                mSize, mMaxSize, mEntries.size(), mEncodings.size(), mHitCount.get(),
+                mMissCount.get(), hitPercent, mEvictionCount.get(), mBytesServed.get(),
+                mBytesSaved.get());
+    }
+
+    //renames a finished temp file into place and records it
+    private boolean commit(String url, String key, File temp, long length){
+        if(mJournalWriter == null || !temp.renameTo(new File(mDirectory, key))){
+            Log.e(TAG, "Failed to commit entry for " + url);
+            temp.delete();
+            return false;
+        }
+
+        Long previous = mEntries.put(key, length);
+        if(previous != null){
+            mSize -= previous;
+            mRedundantOpCount++;
+        }
+        if(mEncodings.remove(key) != null){
+            mRedundantOpCount++;
+        }
+        mSize += length;
+        appendJournal(CLEAN + ' ' + key + ' ' + length);
+
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    private File tempFileFor(String key){
+        return new File(mDirectory, key + "." + sTempCounter.incrementAndGet() + TEMP_SUFFIX);
+    }
+
+    //null if the file is gone or not the length the journal says
+    private FileInputStream openEntry(String key, long length){
+        File file = new File(mDirectory, key);
+        if(file.length() != length){
+            return null;
+        }
+        try{
+            return new FileInputStream(file);
+        }catch (IOException ioe){
+            return null;
+        }
+    }
+
+    private void trimToSize(long maxSize){
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while(mSize > maxSize && iterator.hasNext()){
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(mDirectory, eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            iterator.remove();
+            mEncodings.remove(eldest.getKey());
+            mRedundantOpCount++;
+            mEvictionCount.incrementAndGet();
+            appendJournal(REMOVE + ' ' + eldest.getKey());
+        }
+    }
+
+    private void removeEntry(String key){
+        Long length = mEntries.remove(key);
+        if(length == null){
+            return;
+        }
+        new File(mDirectory, key).delete();
+        mSize -= length;
+        mEncodings.remove(key);
+        mRedundantOpCount++;
+        appendJournal(REMOVE + ' ' + key);
+    }
+
+    private void open() throws IOException{
+        if(!mDirectory.exists() && !mDirectory.mkdirs()){
+            throw new IOException("Could not create " + mDirectory);
+        }
+
+        if(mJournalFile.exists()){
+            readJournal();
+            deleteStrayFiles();
+            mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(mJournalFile, true), UTF_8));
+        }else{
+            deleteContents(mDirectory);
+            rebuildJournal();
+        }
+    }
+
+    private void readJournal() throws IOException{
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mJournalFile), UTF_8));
+        try{
+            if(!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())){
+                throw new IOException("Unexpected journal header");
+            }
+
+            int lineCount = 0;
+            String line;
+            while((line = reader.readLine()) != null){
+                readJournalLine(line);
+                lineCount++;
+            }
+            mRedundantOpCount = lineCount - mEntries.size() - mEncodings.size();
+        }finally {
+            reader.close();
+        }
+    }
+
+    private void readJournalLine(String line){
+        //a torn last line from a crash is simply ignored
+        String[] parts = line.split(" ");
+        if(parts.length < 2){
+            return;
+        }
+
+        String key = parts[1];
+        if(CLEAN.equals(parts[0]) && parts.length == 3){
+            try{
+                long length = Long.parseLong(parts[2]);
+                Long previous = mEntries.put(key, length);
+                if(previous != null){
+                    mSize -= previous;
+                }
+                mSize += length;
+                //a plain write replaces any re-encode before it
+                mEncodings.remove(key);
+            }catch (NumberFormatException nfe){
+                Log.w(TAG, "Ignoring bad journal line: " + line);
+            }
+        }else if(ENCODED.equals(parts[0]) && parts.length == 7){
+            //always follows the CLEAN line of the entry it describes
+            if(mEntries.containsKey(key)){
+                try{
+                    mEncodings.put(key, new Encoding(parts[6], Integer.parseInt(parts[2]),
+                            Integer.parseInt(parts[3]), Integer.parseInt(parts[4]),
+                            Integer.parseInt(parts[5])));
+                }catch (NumberFormatException nfe){
+                    Log.w(TAG, "Ignoring bad journal line: " + line);
+                }
+            }
+        }else if(REMOVE.equals(parts[0])){
+            Long previous = mEntries.remove(key);
+            if(previous != null){
+                mSize -= previous;
+            }
+            mEncodings.remove(key);
+        }else if(READ.equals(parts[0])){
+            //touch it so it moves to the most recently used end
+            mEntries.get(key);
+        }
+    }
+
+    //removes temp files left by interrupted writes and entries whose file is gone
+    private void deleteStrayFiles(){
+        File[] files = mDirectory.listFiles();
+        if(files != null){
+            for(File file : files){
+                String name = file.getName();
+                if(name.equals(JOURNAL_FILE)){
+                    continue;
+                }
+                if(name.endsWith(TEMP_SUFFIX) || !mEntries.containsKey(name)){
+                    file.delete();
+                }
+            }
+        }
+
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while(iterator.hasNext()){
+            Map.Entry<String, Long> entry = iterator.next();
+            File file = new File(mDirectory, entry.getKey());
+            if(file.length() != entry.getValue()){
+                file.delete();
+                mSize -= entry.getValue();
+                mEncodings.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    private void rebuildJournal() throws IOException{
+        closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+
+        File tempJournal = new File(mDirectory, JOURNAL_FILE_TEMP);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tempJournal), UTF_8));
+        try{
+            writer.write(MAGIC + '\n');
+            writer.write(VERSION + '\n');
+            for(Map.Entry<String, Long> entry : mEntries.entrySet()){
+                writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+                Encoding encoding = mEncodings.get(entry.getKey());
+                if(encoding != null){
+                    writer.write(encodedLine(entry.getKey(), encoding) + '\n');
+                }
+            }
+        }finally {
+            writer.close();
+        }
+
+        if(!tempJournal.renameTo(mJournalFile)){
+            throw new IOException("Could not replace journal");
+        }
+        mRedundantOpCount = 0;
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mJournalFile, true), UTF_8));
+    }
+
+    //the url goes last, flickr urls never contain spaces
+    private static String encodedLine(String key, Encoding encoding){
+        return ENCODED + ' ' + key + ' ' + encoding.mWidth + ' ' + encoding.mHeight + ' '
+                + encoding.mOriginalWidth + ' ' + encoding.mOriginalHeight + ' ' + encoding.mUrl;
+    }
+
+    private void appendJournal(String line){
+        if(mJournalWriter == null){
+            return;
+        }
+
+        try{
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+            mJournalWriter.flush();
+
+            if(mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                    && mRedundantOpCount >= mEntries.size()){
+                rebuildJournal();
+            }
+        }catch (IOException ioe){
+            Log.e(TAG, "Failed to write journal", ioe);
+        }
+    }
+
+    private static void deleteContents(File directory){
+        File[] files = directory.listFiles();
+        if(files == null){
+            return;
+        }
+        for(File file : files){
+            file.delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable){
+        if(closeable == null){
+            return;
+        }
+        try{
+            closeable.close();
+        }catch (IOException ignored){
+        }
+    }
+
+    //urls contain characters that are not safe in file names, so hash them
+    static String keyFor(String url){
+        try{
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes(UTF_8));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for(byte b : hash){
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        }catch (NoSuchAlgorithmException nsae){
+            return String.valueOf(url.hashCode() & 0x7fffffff);
+        }
+    }
+}
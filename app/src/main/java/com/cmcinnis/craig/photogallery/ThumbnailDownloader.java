@@ -1,25 +1,94 @@
 package com.cmcinnis.craig.photogallery;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
+import android.os.Process;
 import android.util.Log;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ThumbnailDownloader<T> extends HandlerThread {
+public class ThumbnailDownloader<T> {
     private static final String TAG = "ThumbnailDownloader";
-    private static final int MESSAGE_DOWNLOAD = 0;
 
-    private boolean mHasQuit = false;
-    private Handler mRequestHandler;
+    public static final int DEFAULT_NETWORK_THREADS = 4;
+    public static final int DEFAULT_DECODE_THREADS = 2;
+
+    //scheduling bands, lower runs first, newest first within a band
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    private static final int PRIORITY_COMPACT = 2;
+    private static final int MAX_COMPACT_REQUESTS = 256;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    //shared by every downloader in the process
+    private static final Metrics.Histogram QUEUE_TIME = Metrics.histogram("thumbnail.queue");
+    private static final Metrics.Histogram DOWNLOAD_TIME = Metrics.histogram("thumbnail.download");
+    private static final Metrics.Histogram DECODE_TIME = Metrics.histogram("thumbnail.decode");
+    //requests already waiting when a cell asks for a thumbnail
+    private static final Metrics.Histogram QUEUE_DEPTH =
+            Metrics.valueHistogram("thumbnail.queue_depth");
+    private static final Metrics.Counter DISK_HITS = Metrics.counter("thumbnail.disk_hits");
+    private static final Metrics.Counter NETWORK_FETCHES = Metrics.counter("thumbnail.network_fetches");
+
+    private volatile boolean mHasQuit = false;
     private ConcurrentMap<T, String> mRequestMap = new ConcurrentHashMap<>();
+    //one download per url at a time, every target waiting on it shares the result
+    private ConcurrentMap<String, DownloadTask> mInFlight = new ConcurrentHashMap<>();
     private Handler mResponseHandler;
     private ThumbnailDownloadListener<T> mThumbnailDownloadListener;
+    private ThumbnailDiskCache mDiskCache;
+    //one fetcher for every worker, the transport underneath pools connections
+    private FlickrFetcher mFlickrFetcher = new FlickrFetcher();
+
+    //size of the views thumbnails are decoded for, 0 decodes at full size
+    private volatile int mTargetWidth = 0;
+    private volatile int mTargetHeight = 0;
+    private volatile boolean mPreferRgb565 = false;
+    private volatile BitmapPool mBitmapPool;
+    private volatile boolean mCompactAfterDisplay = false;
+
+    //network fetches and decodes run in separate pools so a slow
+    //download never holds up a bitmap that is ready to decode.
+    //both queues hand out the most urgent, most recent request first
+    private ThreadPoolExecutor mNetworkExecutor;
+    private ThreadPoolExecutor mDecodeExecutor;
+    //re-encodes shown thumbnails at cell size, whenever nothing else wants the cpu
+    private ThreadPoolExecutor mCompactExecutor;
+    private ThumbnailCompactor mCompactor;
+    //urls recently handed to the compactor, so a url is not tried again while it scrolls
+    //in and out of view. eldest dropped first, guarded by itself
+    private final Map<String, Boolean> mCompactRequested =
+            new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_COMPACT_REQUESTS;
+                }
+            };
+    private final AtomicLong mSequenceCounter = new AtomicLong();
+
+    private AtomicLong mCoalescedCount = new AtomicLong();
+    private AtomicLong mPrefetchCount = new AtomicLong();
+    //pulled from the queue before they started
+    private AtomicLong mCancelledCount = new AtomicLong();
+    //reached a worker after every target had moved on
+    private AtomicLong mSkippedCount = new AtomicLong();
+    //fetched from the network, then nobody wanted the bitmap
+    private AtomicLong mWastedCount = new AtomicLong();
 
     public interface ThumbnailDownloadListener<T> {
         void onThumbnailDownloaded(T target, Bitmap thumbnail, String url);
@@ -29,75 +98,423 @@ public class ThumbnailDownloader<T> extends HandlerThread {
         mThumbnailDownloadListener = listener;
     }
 
-    public ThumbnailDownloader(Handler responseHandler) {
-        super(TAG);
+    public ThumbnailDownloader(Handler responseHandler, ThumbnailDiskCache diskCache) {
+        this(responseHandler, diskCache, DEFAULT_NETWORK_THREADS, DEFAULT_DECODE_THREADS);
+    }
+
+    public ThumbnailDownloader(Handler responseHandler, ThumbnailDiskCache diskCache,
+                               int networkThreads, int decodeThreads) {
         mResponseHandler = responseHandler;
+        mDiskCache = diskCache;
+        mNetworkExecutor = newExecutor("network", networkThreads,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mDecodeExecutor = newExecutor("decode", decodeThreads,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mCompactExecutor = newExecutor("compact", 1, Process.THREAD_PRIORITY_LOWEST);
+        mCompactor = new ThumbnailCompactor(diskCache);
     }
 
-    @Override
-    protected void onLooperPrepared() {
-        mRequestHandler = new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-                if (msg.what == MESSAGE_DOWNLOAD) {
-                    T target = (T) msg.obj;
-                    //Log.i(TAG, "Got a request for URL: " + mRequestMap.get(target));
-                    handleRequest(target);
-                }
-            }
-        };
+    public void setTargetSize(int width, int height){
+        mTargetWidth = width;
+        mTargetHeight = height;
+    }
+
+    //decode opaque thumbnails at 16 bits per pixel instead of 32
+    public void setPreferRgb565(boolean preferRgb565){
+        mPreferRgb565 = preferRgb565;
     }
 
+    //decodes draw into bitmaps from this pool when one fits
+    public void setBitmapPool(BitmapPool bitmapPool){
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Once a thumbnail has been shown, re-encode its disk cache entry cropped
+     * to the target size. Only for targets drawn with centerCrop.
+     */
+    public void setCompactAfterDisplay(boolean compactAfterDisplay){
+        mCompactAfterDisplay = compactAfterDisplay;
+    }
 
-    @Override
     public boolean quit(){
         mHasQuit = true;
-        return super.quit();
+        mNetworkExecutor.shutdownNow();
+        discardDecodes(mDecodeExecutor.shutdownNow());
+        mCompactExecutor.shutdownNow();
+        Log.i(TAG, getStats());
+        Log.i(TAG, mDiskCache.toString());
+        return true;
     }
 
     public void queueThumbnail(T target, String url){
-        //Log.i(TAG, "Got a URL: " + url);
-
         if(url == null){
             mRequestMap.remove(target);
         }else{
             mRequestMap.put(target,url);
-            mRequestHandler.obtainMessage(MESSAGE_DOWNLOAD, target)
-                    .sendToTarget();
+            QUEUE_DEPTH.record(getQueueDepth());
+
+            DownloadTask task = new DownloadTask(url, PRIORITY_VISIBLE);
+            DownloadTask existing = mInFlight.putIfAbsent(url, task);
+            if(existing == null){
+                mNetworkExecutor.execute(task);
+            }else{
+                mCoalescedCount.incrementAndGet();
+                //the latest request goes to the front, a queued prefetch is promoted
+                reschedule(existing, PRIORITY_VISIBLE);
+            }
+        }
+    }
+
+    /**
+     * Drops the target's request. If no other target wants the url and the
+     * download has not started yet it is taken off the queue.
+     */
+    public void cancel(T target){
+        String url = mRequestMap.remove(target);
+        if(url == null || !isUnwanted(url)){
+            return;
+        }
+
+        DownloadTask task = mInFlight.get(url);
+        if(task == null || task.mPriority == PRIORITY_PREFETCH || !mNetworkExecutor.remove(task)){
+            return;
+        }
+        if(abandonIfUnwanted(task)){
+            mCancelledCount.incrementAndGet();
+        }else{
+            //someone asked for the url again while we were taking it off
+            mNetworkExecutor.execute(task);
+        }
+    }
+
+    //fetches a url into the disk cache behind all visible work, without decoding it
+    public void prefetchThumbnail(String url){
+        if(url == null || mHasQuit){
+            return;
+        }
+
+        DownloadTask task = new DownloadTask(url, PRIORITY_PREFETCH);
+        if(mInFlight.putIfAbsent(url, task) == null){
+            mNetworkExecutor.execute(task);
         }
     }
 
     public void clearQueue(){
-        mRequestHandler.removeMessages(MESSAGE_DOWNLOAD);
+        mCancelledCount.addAndGet(mNetworkExecutor.getQueue().size());
+        mNetworkExecutor.getQueue().clear();
+        List<Runnable> decodes = new ArrayList<>();
+        mDecodeExecutor.getQueue().drainTo(decodes);
+        discardDecodes(decodes);
+        mInFlight.clear();
         mRequestMap.clear();
     }
 
-    private void handleRequest(final T target){
-        try{
-            final String url = mRequestMap.get(target);
+    //number of requests waiting for a worker in any stage
+    public int getQueueDepth(){
+        return mNetworkExecutor.getQueue().size() + mDecodeExecutor.getQueue().size();
+    }
+
+    public String getStats(){
+        return "queueDepth=" + getQueueDepth()
+                + " queue[" + QUEUE_TIME + "]"
+                + " download[" + DOWNLOAD_TIME + "]"
+                + " decode[" + DECODE_TIME + "]"
+                + " coalesced=" + mCoalescedCount.get()
+                + " prefetched=" + mPrefetchCount.get()
+                + " cancelled=" + mCancelledCount.get()
+                + " skipped=" + mSkippedCount.get()
+                + " wasted=" + mWastedCount.get();
+    }
+
+    public long getCancelledCount(){
+        return mCancelledCount.get();
+    }
+
+    public long getWastedCount(){
+        return mWastedCount.get();
+    }
+
+    //closes the cache entries held by decodes that will never run
+    private static void discardDecodes(List<Runnable> decodes){
+        for(Runnable decode : decodes){
+            if(decode instanceof ThumbnailDownloader.DecodeTask){
+                ((ThumbnailDownloader.DecodeTask) decode).closeSource();
+            }
+        }
+    }
+
+    //queues a re-encode of a url that was just shown at the current target size
+    private void scheduleCompaction(String url){
+        int width = mTargetWidth;
+        int height = mTargetHeight;
+        if(!mCompactAfterDisplay || mHasQuit || width <= 0 || height <= 0){
+            return;
+        }
+        synchronized (mCompactRequested){
+            if(mCompactRequested.put(url, Boolean.TRUE) != null){
+                return;
+            }
+        }
+        mCompactExecutor.execute(new CompactTask(url, width, height));
+    }
+
+    //moves a queued download up to the given band and to the front of it
+    private void reschedule(DownloadTask task, int priority){
+        //only a task we took off the queue is safe to reorder
+        if(mNetworkExecutor.remove(task)){
+            task.mPriority = Math.min(task.mPriority, priority);
+            task.mSequence = mSequenceCounter.incrementAndGet();
+            mNetworkExecutor.execute(task);
+        }
+    }
+
+    //no target is still bound to this url
+    private boolean isUnwanted(String url){
+        return mHasQuit || !mRequestMap.containsValue(url);
+    }
+
+    //gives up the url's in-flight slot unless a target asked for it meanwhile
+    private boolean abandonIfUnwanted(DownloadTask task){
+        if(!isUnwanted(task.mUrl)){
+            return false;
+        }
+        mInFlight.remove(task.mUrl, task);
+
+        //a target may have queued the url while we were removing it
+        return isUnwanted(task.mUrl) || mInFlight.putIfAbsent(task.mUrl, task) != null;
+    }
+
+    //orders work by band, then newest first
+    private abstract class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        //only changed while the task is off the queue
+        volatile int mPriority;
+        volatile long mSequence = mSequenceCounter.incrementAndGet();
+
+        PrioritizedTask(int priority){
+            mPriority = priority;
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if(mPriority != other.mPriority){
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence == other.mSequence ? 0 : (mSequence > other.mSequence ? -1 : 1);
+        }
+    }
+
+    private class DownloadTask extends PrioritizedTask {
+        private final String mUrl;
+        private final long mQueuedAt = Metrics.startTimer();
+        private volatile boolean mFromNetwork = false;
+        //the entry read was already re-encoded
+        private volatile boolean mCompact = false;
 
-            if(url == null){
+        DownloadTask(String url, int priority){
+            super(priority);
+            mUrl = url;
+        }
+
+        @Override
+        public void run() {
+            QUEUE_TIME.recordSince(mQueuedAt);
+            boolean prefetch = mPriority == PRIORITY_PREFETCH;
+            if(prefetch){
+                //already on disk and no cell has asked for it since
+                if(mDiskCache.contains(mUrl) && abandonIfUnwanted(this)){
+                    return;
+                }
+            }else if(abandonIfUnwanted(this)){
+                mSkippedCount.incrementAndGet();
                 return;
             }
 
-            byte[] bitmapBytes = new FlickrFetcher().getUrlBytes(url);
-            final Bitmap bitmap = BitmapFactory
-                    .decodeByteArray(bitmapBytes, 0, bitmapBytes.length);
-            //Log.i(TAG, "Bitmap created");
+            long start = Metrics.startTimer();
+            boolean traced = Metrics.beginSection("ThumbnailDownloader.download");
+            try{
+                ThumbnailDiskCache.Encoding encoding = mDiskCache.getEncoding(mUrl);
+                if(encoding != null && !encoding.covers(mTargetWidth, mTargetHeight)){
+                    //compacted for a smaller cell, fetch the original again
+                    mDiskCache.remove(mUrl);
+                    encoding = null;
+                }
+                mCompact = encoding != null;
+
+                //check the disk cache before going to the network
+                FileInputStream cached = mDiskCache.openForRead(mUrl);
+                byte[] bitmapBytes = null;
+                if(cached == null){
+                    //the body goes straight to disk and is decoded from there
+                    cached = mFlickrFetcher.downloadToCache(mUrl, mDiskCache);
+                    if(cached == null){
+                        //no disk cache to stream into, keep the bytes on the heap
+                        bitmapBytes = mFlickrFetcher.getUrlBytes(mUrl);
+                    }
+                    mFromNetwork = true;
+                    NETWORK_FETCHES.increment();
+                    if(prefetch){
+                        mPrefetchCount.incrementAndGet();
+                    }
+                }else{
+                    DISK_HITS.increment();
+                }
+                DOWNLOAD_TIME.recordSince(start);
+
+                DecodeTask decode = new DecodeTask(this, cached, bitmapBytes);
+                //a prefetch is only decoded if a cell asked for it in the meantime
+                if(mHasQuit || (prefetch && abandonIfUnwanted(this))){
+                    decode.closeSource();
+                    return;
+                }
+                //rejected once quit() has shut the pool down, which closes the source
+                mDecodeExecutor.execute(decode);
+            }catch (IOException ioe){
+                mInFlight.remove(mUrl, this);
+                Log.e(TAG, "Error downloading image", ioe);
+            }finally {
+                Metrics.endSection(traced);
+            }
+        }
+    }
+
+    //decodes from an open disk cache entry, or from bytes when there is no disk cache
+    private class DecodeTask extends PrioritizedTask {
+        private final DownloadTask mDownload;
+        private final FileInputStream mCached;
+        private final byte[] mBitmapBytes;
+
+        DecodeTask(DownloadTask download, FileInputStream cached, byte[] bitmapBytes){
+            super(download.mPriority);
+            mDownload = download;
+            mCached = cached;
+            mBitmapBytes = bitmapBytes;
+        }
+
+        void closeSource(){
+            if(mCached != null){
+                try{
+                    mCached.close();
+                }catch (IOException ignored){
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            if(abandonIfUnwanted(mDownload)){
+                closeSource();
+                if(mDownload.mFromNetwork){
+                    mWastedCount.incrementAndGet();
+                }
+                return;
+            }
+
+            final String url = mDownload.mUrl;
+            long start = Metrics.startTimer();
+            boolean traced = Metrics.beginSection("ThumbnailDownloader.decode");
+            Bitmap decoded = null;
+            try{
+                if(mCached != null){
+                    //re-encodes are only ever made from opaque photos
+                    decoded = PictureUtils.decodeSampledBitmap(mCached.getFD(),
+                            mTargetWidth, mTargetHeight, mPreferRgb565, mDownload.mCompact,
+                            mBitmapPool);
+                }else{
+                    decoded = PictureUtils.decodeSampledBitmap(mBitmapBytes,
+                            mTargetWidth, mTargetHeight, mPreferRgb565, mBitmapPool);
+                }
+            }catch (IOException ioe){
+                Log.e(TAG, "Could not read cached " + url, ioe);
+            }finally {
+                closeSource();
+                Metrics.endSection(traced);
+            }
+            final Bitmap bitmap = decoded;
+            final boolean compactable = mCached != null && !mDownload.mCompact;
+            DECODE_TIME.recordSince(start);
+
+            //later requests for this url start a fresh download
+            mInFlight.remove(url, mDownload);
+            if(bitmap == null){
+                Log.e(TAG, "Could not decode " + url);
+                return;
+            }
 
             mResponseHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    if(mRequestMap.get(target) != url || mHasQuit){
+                    if(mHasQuit){
                         return;
                     }
 
-                    mRequestMap.remove(target);
-                    mThumbnailDownloadListener.onThumbnailDownloaded(target, bitmap, url);
+                    //hand the one bitmap to every target still waiting on this url
+                    int delivered = 0;
+                    for(Map.Entry<T, String> entry : mRequestMap.entrySet()){
+                        T target = entry.getKey();
+                        if(url.equals(entry.getValue()) && mRequestMap.remove(target, url)){
+                            mThumbnailDownloadListener.onThumbnailDownloaded(target, bitmap, url);
+                            delivered++;
+                        }
+                    }
+                    if(delivered == 0 && mDownload.mFromNetwork){
+                        mWastedCount.incrementAndGet();
+                    }else if(delivered > 0 && compactable){
+                        scheduleCompaction(url);
+                    }
                 }
             });
-        }catch (IOException ioe){
-            Log.e(TAG, "Error downloading image", ioe);
         }
     }
+
+    private class CompactTask extends PrioritizedTask {
+        private final String mUrl;
+        private final int mWidth;
+        private final int mHeight;
+
+        CompactTask(String url, int width, int height){
+            super(PRIORITY_COMPACT);
+            mUrl = url;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public void run() {
+            if(!mHasQuit){
+                mCompactor.compact(mUrl, mWidth, mHeight);
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor(final String name, int threads,
+                                                  final int threadPriority){
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(threadPriority);
+                                runnable.run();
+                            }
+                        }, TAG + "-" + name + "-" + mCount.incrementAndGet());
+                    }
+                },
+                //work handed over while quit() shuts the pools down is dropped
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable,
+                                                  ThreadPoolExecutor executor) {
+                        discardDecodes(Collections.singletonList(runnable));
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 }
@@ -0,0 +1,103 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Downloads the grid thumbnails of freshly polled photos into the disk cache
+ * from inside the poll job, so a gallery opened from the notification draws
+ * them without going to the network.
+ *
+ * Only runs on an unmetered connection or while charging, and stops once a
+ * run has spent its byte budget.
+ */
+public class ThumbnailPrewarmer {
+    private static final String TAG = "ThumbnailPrewarmer";
+
+    public static final long DEFAULT_BYTE_BUDGET = 2 * 1024 * 1024;
+
+    private final ThumbnailDiskCache mDiskCache;
+    private final FlickrFetcher mFlickrFetcher;
+    private final ThumbnailSizeSelector mSizeSelector;
+    private final int mCellWidth;
+    private final int mCellHeight;
+    private final long mByteBudget;
+
+    public ThumbnailPrewarmer(Context context, long byteBudget){
+        mDiskCache = ThumbnailDiskCache.get(context);
+        mFlickrFetcher = new FlickrFetcher();
+        mSizeSelector = ThumbnailSizeSelector.get(context);
+        mByteBudget = byteBudget;
+
+        //the same cell the gallery grid lays out, so the same rendition gets picked
+        Resources resources = context.getResources();
+        mCellWidth = resources.getDisplayMetrics().widthPixels / PhotoGalleryFragment.SPAN_COUNT;
+        mCellHeight = resources.getDimensionPixelSize(R.dimen.gallery_item_height);
+    }
+
+    public static boolean isAllowed(Context context){
+        ConnectivityManager cm = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return !cm.isActiveNetworkMetered() || isCharging(context);
+    }
+
+    /**
+     * Fetches thumbnails for the items in order until the budget runs out.
+     * Returns the number of bytes downloaded.
+     */
+    public long prewarm(List<GalleryItem> items){
+        long spent = 0;
+        int fetched = 0;
+        for(GalleryItem item : items){
+            if(Thread.currentThread().isInterrupted()){
+                break;
+            }
+
+            String url = mSizeSelector.selectUrl(item, mCellWidth, mCellHeight);
+            if(url == null || mDiskCache.contains(url)){
+                continue;
+            }
+
+            try{
+                FileInputStream stored = mFlickrFetcher.downloadToCache(url, mDiskCache);
+                if(stored == null){
+                    //no disk cache, nothing to warm
+                    break;
+                }
+                try{
+                    spent += stored.getChannel().size();
+                }finally {
+                    stored.close();
+                }
+                fetched++;
+            }catch (IOException ioe){
+                Log.w(TAG, "Could not prewarm " + url, ioe);
+            }
+
+            //the budget may be overshot by one thumbnail, never more
+            if(spent >= mByteBudget){
+                break;
+            }
+        }
+
+        Log.i(TAG, "Prewarmed " + fetched + " of " + items.size() + " thumbnails, "
+                + spent + " bytes");
+        return spent;
+    }
+
+    private static boolean isCharging(Context context){
+        //sticky broadcast, no receiver is actually registered
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+}
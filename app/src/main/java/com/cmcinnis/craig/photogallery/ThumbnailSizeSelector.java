@@ -0,0 +1,103 @@
+package com.cmcinnis.craig.photogallery;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Picks which of a photo's Flickr renditions to load for a grid cell.
+ *
+ * The choice is the smallest variant that covers the cell. On a metered
+ * connection the cell is treated as a bit smaller, and on a 2G-class one as
+ * half size, so slow or paid-for data is not spent on pixels nobody sees.
+ */
+public class ThumbnailSizeSelector {
+    private static final String TAG = "ThumbnailSizeSelector";
+
+    //share of the cell a variant has to cover on each kind of connection
+    private static final float METERED_SCALE = 0.75f;
+    private static final float SLOW_SCALE = 0.5f;
+
+    private static ThumbnailSizeSelector sThumbnailSizeSelector;
+
+    private final ConnectivityManager mConnectivityManager;
+    private volatile float mScale = 1f;
+
+    public static synchronized ThumbnailSizeSelector get(Context context){
+        if(sThumbnailSizeSelector == null){
+            Context appContext = context.getApplicationContext();
+            sThumbnailSizeSelector = new ThumbnailSizeSelector(appContext);
+        }
+        return sThumbnailSizeSelector;
+    }
+
+    private ThumbnailSizeSelector(Context context){
+        mConnectivityManager = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        updateNetworkClass();
+
+        //the network class is read once per change rather than once per cell
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                updateNetworkClass();
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Url of the variant to load into a width x height cell. Falls back to the
+     * largest variant when none covers it, and to getUrl() when the item has none.
+     */
+    public String selectUrl(GalleryItem item, int width, int height){
+        List<PhotoVariant> variants = item.getVariants();
+        if(variants.isEmpty() || width <= 0 || height <= 0){
+            return item.getUrl();
+        }
+
+        int needWidth = Math.round(width * mScale);
+        int needHeight = Math.round(height * mScale);
+        for(PhotoVariant variant : variants){
+            if(variant.covers(needWidth, needHeight)){
+                return variant.getUrl();
+            }
+        }
+        return variants.get(variants.size() - 1).getUrl();
+    }
+
+    private void updateNetworkClass(){
+        NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+        float scale = 1f;
+        if(networkInfo != null && networkInfo.getType() == ConnectivityManager.TYPE_MOBILE
+                && isSlowMobile(networkInfo.getSubtype())){
+            scale = SLOW_SCALE;
+        }else if(mConnectivityManager.isActiveNetworkMetered()){
+            scale = METERED_SCALE;
+        }
+
+        if(scale != mScale){
+            Log.i(TAG, "Thumbnail scale now " + scale);
+        }
+        mScale = scale;
+    }
+
+    private static boolean isSlowMobile(int subtype){
+        switch (subtype){
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
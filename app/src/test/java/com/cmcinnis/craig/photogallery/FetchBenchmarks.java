@@ -0,0 +1,59 @@
+package com.cmcinnis.craig.photogallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for the download side of FlickrFetcher, against
+ * StubFlickrServer over loopback. The JVM has no BitmapFactory, decode
+ * latency is covered by the instrumented ThumbnailLatencyBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FetchBenchmarks {
+    private StubFlickrServer mServer;
+    private HttpTransport mHttpTransport;
+    private String mPageUrl;
+    private String mThumbnailUrl;
+
+    @Setup
+    public void setUp() throws Exception {
+        mServer = new StubFlickrServer();
+        mHttpTransport = new HttpTransport(HttpTransport.DEFAULT_CONNECT_TIMEOUT_MS,
+                HttpTransport.DEFAULT_READ_TIMEOUT_MS);
+        mPageUrl = mServer.pageUrl(100);
+        mThumbnailUrl = mServer.photoUrl("43856134718_6c603f7407_m.jpg");
+    }
+
+    @TearDown
+    public void tearDown(){
+        mServer.stop();
+    }
+
+    //FlickrFetcher.downloadGalleryItems without the android Uri endpoint
+    @Benchmark
+    public List<GalleryItem> downloadAndParsePage() throws Exception {
+        HttpTransport.Response response = mHttpTransport.execute(mPageUrl, false);
+        try{
+            return GalleryItemParser.parse(response.getInputStream());
+        }finally {
+            response.close();
+        }
+    }
+
+    //FlickrFetcher.getUrlBytes, the first stage of every thumbnail
+    @Benchmark
+    public byte[] downloadThumbnail() throws Exception {
+        return mHttpTransport.getBytes(mThumbnailUrl);
+    }
+}
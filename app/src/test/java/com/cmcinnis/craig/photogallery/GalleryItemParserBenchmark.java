@@ -0,0 +1,187 @@
+package com.cmcinnis.craig.photogallery;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares GalleryItemParser with the old String -> JSONObject -> String -> Gson
+ * path on recorded getRecent pages. Run with ./gradlew testDebugUnitTest and
+ * read the timings from the test output.
+ */
+public class GalleryItemParserBenchmark {
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int MEASURED_ITERATIONS = 500;
+
+    @Test
+    public void streamingParserMatchesLegacyParser() throws Exception {
+        for(String fixture : new String[]{"flickr_recent_100.json", "flickr_recent_500.json"}){
+            byte[] page = readFixture(fixture);
+            List<GalleryItem> expected = parseLegacy(page);
+            List<GalleryItem> actual = GalleryItemParser.parse(new ByteArrayInputStream(page));
+
+            assertEquals(expected.size(), actual.size());
+            for(int i = 0; i < expected.size(); i++){
+                assertEquals(expected.get(i).getId(), actual.get(i).getId());
+                assertEquals(expected.get(i).getUrl(), actual.get(i).getUrl());
+                assertEquals(expected.get(i).getOwner(), actual.get(i).getOwner());
+                assertEquals(expected.get(i).toString(), actual.get(i).toString());
+                assertNotNull(actual.get(i).getUrl());
+            }
+        }
+    }
+
+    @Test
+    public void sizeExtrasBecomeVariantsSmallestFirst() throws Exception {
+        String body = "{\"photos\":{\"photo\":[{\"id\":\"1\",\"title\":\"a\","
+                + "\"url_m\":\"m.jpg\",\"height_m\":\"375\",\"width_m\":\"500\","
+                + "\"url_s\":\"s.jpg\",\"height_s\":180,\"width_s\":240,"
+                + "\"url_t\":\"t.jpg\",\"height_t\":75,\"width_t\":100}]},\"stat\":\"ok\"}";
+        List<GalleryItem> items = GalleryItemParser.parse(new ByteArrayInputStream(body.getBytes("UTF-8")));
+
+        assertEquals(1, items.size());
+        GalleryItem item = items.get(0);
+        assertEquals("s.jpg", item.getUrl());
+        assertEquals(3, item.getVariants().size());
+        assertEquals("t", item.getVariants().get(0).getSuffix());
+        assertEquals("s", item.getVariants().get(1).getSuffix());
+        assertEquals(500, item.getVariants().get(2).getWidth());
+        assertEquals(item.getVariants().toString(),
+                PhotoVariant.decode(PhotoVariant.encode(item.getVariants())).toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void failedResponseThrows() throws Exception {
+        String body = "{\"stat\":\"fail\",\"code\":100,\"message\":\"Invalid API Key\"}";
+        GalleryItemParser.parse(new ByteArrayInputStream(body.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void benchmark100ItemPage() throws Exception {
+        benchmark("flickr_recent_100.json");
+    }
+
+    @Test
+    public void benchmark500ItemPage() throws Exception {
+        benchmark("flickr_recent_500.json");
+    }
+
+    //timing only, runs with the JMH suite under -Pbenchmark
+    private void benchmark(String fixture) throws Exception {
+        JvmBenchmarks.assumeBenchmarkRun();
+        final byte[] page = readFixture(fixture);
+
+        Measurement legacy = measure(new ParseRun() {
+            @Override
+            public int run() throws Exception {
+                return parseLegacy(page).size();
+            }
+        });
+        Measurement streaming = measure(new ParseRun() {
+            @Override
+            public int run() throws Exception {
+                return GalleryItemParser.parse(new ByteArrayInputStream(page)).size();
+            }
+        });
+
+        System.out.println(fixture + " legacy:    " + legacy);
+        System.out.println(fixture + " streaming: " + streaming);
+    }
+
+    //the pre-streaming FlickrFetcher path: String, JSONObject, String again, then Gson
+    private static List<GalleryItem> parseLegacy(byte[] page) throws Exception {
+        String jsonString = new String(page);
+        JSONObject jsonBody = new JSONObject(jsonString);
+        JSONArray photosJsonArray = jsonBody.getJSONObject("photos").getJSONArray("photo");
+
+        Type galleryItemType = new TypeToken<ArrayList<GalleryItem>>() {}.getType();
+        List<GalleryItem> galleryItemList =
+                new Gson().fromJson(photosJsonArray.toString(), galleryItemType);
+
+        Iterator<GalleryItem> iterator = galleryItemList.iterator();
+        while(iterator.hasNext()){
+            if(iterator.next().getUrl() == null){
+                iterator.remove();
+            }
+        }
+        return galleryItemList;
+    }
+
+    private interface ParseRun {
+        int run() throws Exception;
+    }
+
+    private static class Measurement {
+        long mMicrosPerParse;
+        long mBytesPerParse;
+
+        @Override
+        public String toString(){
+            return mMicrosPerParse + " us/parse, "
+                    + (mBytesPerParse < 0 ? "n/a" : (mBytesPerParse / 1024) + " KB allocated/parse");
+        }
+    }
+
+    private static Measurement measure(ParseRun parseRun) throws Exception {
+        int sink = 0;
+        for(int i = 0; i < WARMUP_ITERATIONS; i++){
+            sink += parseRun.run();
+        }
+
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for(int i = 0; i < MEASURED_ITERATIONS; i++){
+            sink += parseRun.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytesAfter = allocatedBytes();
+        assertTrue(sink > 0);
+
+        Measurement measurement = new Measurement();
+        measurement.mMicrosPerParse = elapsed / 1000 / MEASURED_ITERATIONS;
+        measurement.mBytesPerParse = bytesBefore < 0
+                ? -1 : (bytesAfter - bytesBefore) / MEASURED_ITERATIONS;
+        return measurement;
+    }
+
+    //per-thread allocation counter, only available on HotSpot based JVMs
+    private static long allocatedBytes(){
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean){
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    static byte[] readFixture(String name) throws IOException {
+        InputStream in = GalleryItemParserBenchmark.class.getClassLoader().getResourceAsStream(name);
+        assertNotNull("missing fixture " + name, in);
+        try{
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while((bytesRead = in.read(buffer)) > 0){
+                out.write(buffer, 0, bytesRead);
+            }
+            return out.toByteArray();
+        }finally {
+            in.close();
+        }
+    }
+}
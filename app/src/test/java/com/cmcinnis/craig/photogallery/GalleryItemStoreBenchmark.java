@@ -0,0 +1,206 @@
+package com.cmcinnis.craig.photogallery;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that GalleryItemStore gives back what went in, and compares its
+ * retained heap with a plain ArrayList of GalleryItems for long sessions.
+ * Run with ./gradlew testDebugUnitTest and read the sizes from the output.
+ */
+public class GalleryItemStoreBenchmark {
+    private static final int PAGE_SIZE = 100;
+    //what PageLoader keeps resident: the page on screen and five either side
+    private static final int RESIDENT_PAGES = 11;
+
+    @Test
+    public void storeRoundTripsParsedItems() throws Exception {
+        List<GalleryItem> items = parseFixture();
+        GalleryItemStore store = GalleryItemStore.EMPTY
+                .append(GalleryItemStore.Page.of(1, items));
+
+        assertEquals(items.size(), store.size());
+        for(int i = 0; i < items.size(); i++){
+            GalleryItem expected = items.get(i);
+            GalleryItem actual = store.get(i);
+            assertEquals(expected.getIdAsLong(), store.getId(i));
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getUrl(), actual.getUrl());
+            assertEquals(expected.getOwner(), actual.getOwner());
+            assertEquals(expected.getVariants().toString(), actual.getVariants().toString());
+            assertEquals(expected.getCaption() == null ? "" : expected.getCaption(),
+                    actual.getCaption());
+            assertTrue(store.sameContents(i, store, i));
+        }
+    }
+
+    @Test
+    public void urlsOffThePatternAreKeptAsIs() throws Exception {
+        GalleryItem item = new GalleryItem();
+        item.setId("42");
+        item.setCaption("odd");
+        item.setServer("1");
+        item.setSecret("abc");
+        item.addVariant(new PhotoVariant("s", "https://example.com/42.jpg", 240, 160));
+        item.setUrl("https://example.com/42.jpg");
+
+        GalleryItem actual = GalleryItemStore.EMPTY
+                .append(GalleryItemStore.Page.of(1, Collections.singletonList(item)))
+                .get(0);
+        assertEquals("https://example.com/42.jpg", actual.getUrl());
+        assertEquals(item.getVariants().toString(), actual.getVariants().toString());
+    }
+
+    @Test
+    public void droppedPagesKeepTheirIds() throws Exception {
+        GalleryItemStore store = buildStore(uniqueItems(3 * PAGE_SIZE));
+        GalleryItemStore dropped = store.replace(store.getPage(1).drop());
+
+        assertEquals(store.size(), dropped.size());
+        assertNull(dropped.get(PAGE_SIZE));
+        assertFalse(dropped.isResident(PAGE_SIZE));
+        assertTrue(dropped.isResident(0));
+        assertEquals(store.getId(PAGE_SIZE), dropped.getId(PAGE_SIZE));
+        assertEquals(PAGE_SIZE + 5, dropped.indexOfId(store.getId(PAGE_SIZE + 5)));
+        assertEquals(PAGE_SIZE, dropped.startOf(2));
+        assertFalse(dropped.sameContents(PAGE_SIZE, store, PAGE_SIZE));
+    }
+
+    @Test
+    public void overlappingPagesKeepEachIdOnce() throws Exception {
+        List<GalleryItem> items = uniqueItems(250);
+        //the recent feed shifted by 20 photos between the two requests
+        GalleryItemStore store = GalleryItemStore.EMPTY
+                .append(GalleryItemStore.Page.of(1, items.subList(0, PAGE_SIZE)))
+                .append(GalleryItemStore.Page.of(2, items.subList(PAGE_SIZE - 20, 2 * PAGE_SIZE)));
+
+        assertEquals(2 * PAGE_SIZE, store.size());
+        assertEquals(PAGE_SIZE, store.getPage(1).size());
+        assertEquals(items.get(PAGE_SIZE).getIdAsLong(), store.getId(PAGE_SIZE));
+        assertEquals(items.get(PAGE_SIZE).getUrl(), store.get(PAGE_SIZE).getUrl());
+        for(int i = 0; i < store.size(); i++){
+            assertEquals(i, store.indexOfId(store.getId(i)));
+        }
+
+        //a fresh copy of page 1 that now also holds photos from page 2
+        GalleryItemStore replaced = store.replace(GalleryItemStore.Page.of(1,
+                items.subList(10, PAGE_SIZE + 10)));
+        assertEquals(PAGE_SIZE - 10, replaced.getPage(0).size());
+        for(int i = 0; i < replaced.size(); i++){
+            assertEquals(i, replaced.indexOfId(replaced.getId(i)));
+        }
+
+        //a dropped page still counts, it keeps its ids
+        GalleryItemStore dropped = store.replace(store.getPage(1).drop())
+                .append(GalleryItemStore.Page.of(3, items.subList(150, 250)));
+        assertEquals(250, dropped.size());
+        assertEquals(items.get(249).getIdAsLong(), dropped.getId(249));
+    }
+
+    @Test
+    public void benchmark10kItems() throws Exception {
+        benchmark(10000);
+    }
+
+    @Test
+    public void benchmark50kItems() throws Exception {
+        benchmark(50000);
+    }
+
+    //heap measurement only, runs with the JMH suite under -Pbenchmark
+    private void benchmark(int count) throws Exception {
+        JvmBenchmarks.assumeBenchmarkRun();
+        long before = usedHeap();
+        List<GalleryItem> list = uniqueItems(count);
+        long listBytes = usedHeap() - before;
+
+        before = usedHeap();
+        GalleryItemStore store = buildStore(list);
+        long storeBytes = usedHeap() - before;
+        //the estimate counts captions and owners too, which the store shares with the list here
+        long storeEstimate = store.getSizeInBytes();
+
+        //the pages themselves are shared, only the dropped ones let go
+        GalleryItemStore windowed = store;
+        for(int i = RESIDENT_PAGES; i < windowed.getPageCount(); i++){
+            windowed = windowed.replace(windowed.getPage(i).drop());
+        }
+        before = usedHeap();
+        store = null;
+        long windowedBytes = storeBytes - (before - usedHeap());
+
+        assertEquals(list.size(), windowed.size());
+        assertEquals(list.get(count - 1).getIdAsLong(), windowed.getId(count - 1));
+        System.out.println(count + " items ArrayList<GalleryItem>: " + listBytes / 1024 + " KB");
+        System.out.println(count + " items GalleryItemStore:       " + storeBytes / 1024
+                + " KB, estimated " + storeEstimate / 1024 + " KB");
+        System.out.println(count + " items windowed, " + RESIDENT_PAGES + " pages:   "
+                + windowedBytes / 1024 + " KB, estimated "
+                + windowed.getSizeInBytes() / 1024 + " KB");
+    }
+
+    private static GalleryItemStore buildStore(List<GalleryItem> items){
+        GalleryItemStore store = GalleryItemStore.EMPTY;
+        for(int start = 0; start < items.size(); start += PAGE_SIZE){
+            int end = Math.min(items.size(), start + PAGE_SIZE);
+            store = store.append(GalleryItemStore.Page.of(store.getPageCount() + 1,
+                    items.subList(start, end)));
+        }
+        return store;
+    }
+
+    private static List<GalleryItem> parseFixture() throws Exception {
+        byte[] page = GalleryItemParserBenchmark.readFixture("flickr_recent_500.json");
+        return GalleryItemParser.parse(new ByteArrayInputStream(page));
+    }
+
+    //the fixture repeated with fresh ids, parsed each round like real pages would be
+    private static List<GalleryItem> uniqueItems(int count) throws Exception {
+        byte[] page = GalleryItemParserBenchmark.readFixture("flickr_recent_500.json");
+        List<GalleryItem> items = new ArrayList<>(count);
+        long nextId = 50000000000L;
+        while(items.size() < count){
+            for(GalleryItem item : GalleryItemParser.parse(new ByteArrayInputStream(page))){
+                if(items.size() == count){
+                    break;
+                }
+                items.add(withId(item, nextId++));
+            }
+        }
+        return items;
+    }
+
+    private static GalleryItem withId(GalleryItem item, long id){
+        String oldId = item.getId();
+        String newId = Long.toString(id);
+        GalleryItem copy = new GalleryItem();
+        copy.setId(id);
+        copy.setCaption(item.getCaption());
+        //a fresh owner too, the recent feed rarely shows one owner twice
+        copy.setOwner(item.getOwner() == null ? null : newId + "@N07");
+        copy.setFarm(item.getFarm());
+        copy.setServer(item.getServer());
+        copy.setSecret(item.getSecret());
+        for(PhotoVariant variant : item.getVariants()){
+            copy.addVariant(new PhotoVariant(variant.getSuffix(),
+                    variant.getUrl().replace(oldId, newId), variant.getWidth(),
+                    variant.getHeight()));
+        }
+        copy.setUrl(item.getUrl() == null ? null : item.getUrl().replace(oldId, newId));
+        return copy;
+    }
+
+    private static long usedHeap(){
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 4; i++){
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,217 @@
+package com.cmcinnis.craig.photogallery;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs HttpTransport against a stub server on localhost.
+ */
+public class HttpTransportTest {
+    private static final byte[] BODY = "{\"photos\":{\"photo\":[]},\"stat\":\"ok\"}".getBytes();
+    private static final String ETAG = "\"v1\"";
+
+    private HttpServer mServer;
+    private String mBaseUrl;
+    private AtomicInteger mConditionalHits = new AtomicInteger();
+    //client port of every request, a reused connection shows up as the same port
+    private List<Integer> mClientPorts = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/plain", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mClientPorts.add(exchange.getRemoteAddress().getPort());
+                exchange.sendResponseHeaders(200, BODY.length);
+                writeAndClose(exchange, BODY);
+            }
+        });
+        mServer.createContext("/gzip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                assertEquals("gzip", exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                byte[] gzipped = gzip(BODY);
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, gzipped.length);
+                writeAndClose(exchange, gzipped);
+            }
+        });
+        mServer.createContext("/etag", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if(ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))){
+                    mConditionalHits.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.sendResponseHeaders(200, BODY.length);
+                writeAndClose(exchange, BODY);
+            }
+        });
+        mServer.createContext("/missing", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mClientPorts.add(exchange.getRemoteAddress().getPort());
+                exchange.sendResponseHeaders(404, BODY.length);
+                writeAndClose(exchange, BODY);
+            }
+        });
+        mServer.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try{
+                    Thread.sleep(1000);
+                }catch (InterruptedException ignored){
+                }
+                exchange.sendResponseHeaders(200, BODY.length);
+                writeAndClose(exchange, BODY);
+            }
+        });
+        mServer.start();
+        mBaseUrl = "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void readsBodySizedFromContentLength() throws IOException {
+        HttpTransport transport = new HttpTransport(1000, 1000);
+        HttpTransport.Response response = transport.execute(mBaseUrl + "/plain", false);
+        try{
+            assertEquals(BODY.length, response.getContentLength());
+            assertTrue(Arrays.equals(BODY, response.readBytes()));
+        }finally {
+            response.close();
+        }
+
+        HttpTransport.Timing timing = response.getTiming();
+        assertTrue(timing.getTotalMs() >= timing.getTtfbMs());
+        assertTrue(timing.getTtfbMs() >= timing.getConnectMs());
+    }
+
+    @Test
+    public void decodesGzipBodies() throws IOException {
+        HttpTransport transport = new HttpTransport(1000, 1000);
+        assertTrue(Arrays.equals(BODY, transport.getBytes(mBaseUrl + "/gzip")));
+    }
+
+    @Test
+    public void sendsRememberedETag() throws IOException {
+        HttpTransport transport = new HttpTransport(1000, 1000);
+
+        HttpTransport.Response first = transport.execute(mBaseUrl + "/etag", true);
+        assertFalse(first.isNotModified());
+        assertTrue(Arrays.equals(BODY, first.readBytes()));
+        first.close();
+
+        HttpTransport.Response second = transport.execute(mBaseUrl + "/etag", true);
+        assertTrue(second.isNotModified());
+        second.close();
+
+        assertEquals(1, mConditionalHits.get());
+        assertEquals(1, transport.getNotModifiedCount());
+    }
+
+    @Test
+    public void sendsStoredValidatorsFromAnotherTransport() throws IOException {
+        HttpTransport.Response first = new HttpTransport(1000, 1000)
+                .execute(mBaseUrl + "/etag", (HttpTransport.Validators) null);
+        HttpTransport.Validators validators = first.getValidators();
+        first.close();
+        assertEquals(ETAG, validators.getETag());
+
+        //a fresh process remembers nothing but what the caller kept
+        HttpTransport.Response second = new HttpTransport(1000, 1000)
+                .execute(mBaseUrl + "/etag", validators);
+        assertTrue(second.isNotModified());
+        second.close();
+        assertEquals(1, mConditionalHits.get());
+    }
+
+    @Test
+    public void unconditionalRequestIgnoresETag() throws IOException {
+        HttpTransport transport = new HttpTransport(1000, 1000);
+        transport.getBytes(mBaseUrl + "/etag");
+        assertTrue(Arrays.equals(BODY, transport.getBytes(mBaseUrl + "/etag")));
+        assertEquals(0, mConditionalHits.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void errorStatusThrows() throws IOException {
+        new HttpTransport(1000, 1000).getBytes(mBaseUrl + "/missing");
+    }
+
+    @Test
+    public void errorStatusKeepsConnection() throws IOException {
+        HttpTransport transport = new HttpTransport(1000, 1000);
+        try{
+            transport.getBytes(mBaseUrl + "/missing");
+            fail("read a 404 response");
+        }catch (IOException expected){
+        }
+        assertTrue(Arrays.equals(BODY, transport.getBytes(mBaseUrl + "/plain")));
+
+        assertEquals(2, mClientPorts.size());
+        assertEquals(mClientPorts.get(0), mClientPorts.get(1));
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void readTimeoutApplies() throws IOException {
+        new HttpTransport(1000, 100).getBytes(mBaseUrl + "/slow");
+    }
+
+    @Test
+    public void interruptCancelsBodyRead() throws IOException {
+        HttpTransport transport = new HttpTransport(1000, 1000);
+        HttpTransport.Response response = transport.execute(mBaseUrl + "/plain", false);
+        Thread.currentThread().interrupt();
+        try{
+            response.readBytes();
+            fail("read an interrupted response");
+        }catch (InterruptedIOException expected){
+        }finally {
+            response.close();
+            Thread.interrupted();
+        }
+    }
+
+    private static void writeAndClose(HttpExchange exchange, byte[] body) throws IOException {
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+}
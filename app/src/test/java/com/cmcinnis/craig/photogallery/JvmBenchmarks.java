@@ -0,0 +1,54 @@
+package com.cmcinnis.craig.photogallery;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.File;
+
+/**
+ * Runs the JMH benchmarks with fixed settings and writes the results as JSON,
+ * one file per label, so two commits can be compared side by side:
+ *
+ *   ./gradlew testDebugUnitTest --tests '*JvmBenchmarks' -Pbenchmark=$(git rev-parse --short HEAD)
+ *
+ * Results land in app/build/benchmarks/jmh-<label>.json. Skipped in a normal
+ * test run.
+ */
+public class JvmBenchmarks {
+    //skips the calling test unless -Pbenchmark=<label> was passed
+    static String assumeBenchmarkRun(){
+        String label = System.getProperty("benchmark");
+        Assume.assumeTrue("pass -Pbenchmark=<label> to run", label != null && !label.isEmpty());
+        return label;
+    }
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        String label = assumeBenchmarkRun();
+
+        File dir = new File(System.getProperty("benchmark.dir", "build/benchmarks"));
+        dir.mkdirs();
+
+        Options options = new OptionsBuilder()
+                .include(ParseBenchmarks.class.getSimpleName())
+                .include(FetchBenchmarks.class.getSimpleName())
+                .include(ThumbnailIoBenchmarks.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(10)
+                .measurementTime(TimeValue.seconds(1))
+                //gc.alloc.rate.norm is the allocation per page or thumbnail
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(dir, "jmh-" + label + ".json").getPath())
+                .build();
+        new Runner(options).run();
+    }
+}
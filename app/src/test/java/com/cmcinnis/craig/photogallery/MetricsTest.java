@@ -0,0 +1,68 @@
+package com.cmcinnis.craig.photogallery;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @After
+    public void tearDown(){
+        Metrics.setEnabled(true);
+        Metrics.reset();
+    }
+
+    @Test
+    public void bucketsCoverEveryValue(){
+        for(long value = 0; value < 1 << 20; value++){
+            int bucket = Metrics.Histogram.bucketOf(value);
+            assertTrue(value <= Metrics.Histogram.upperBoundOf(bucket));
+            if(bucket > 0){
+                assertTrue(value > Metrics.Histogram.upperBoundOf(bucket - 1));
+            }
+        }
+        assertTrue(Metrics.Histogram.bucketOf(Long.MAX_VALUE) >= 0);
+    }
+
+    @Test
+    public void percentilesAreWithinABucket(){
+        Metrics.Histogram histogram = Metrics.histogram("test.percentiles");
+        for(int i = 1; i <= 1000; i++){
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean());
+        assertEquals(500, histogram.getPercentile(50), 500 / 16);
+        assertEquals(990, histogram.getPercentile(99), 990 / 16);
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void disabledRecordsNothing(){
+        Metrics.Counter counter = Metrics.counter("test.disabled");
+        Metrics.setEnabled(false);
+        counter.increment();
+        Metrics.histogram("test.disabled").record(5);
+        assertEquals(0, Metrics.startTimer());
+        assertFalse(Metrics.beginSection("test"));
+
+        assertEquals(0, counter.get());
+        assertEquals(0, Metrics.histogram("test.disabled").getCount());
+    }
+
+    @Test
+    public void writesJson() throws Exception {
+        Metrics.counter("test.json").add(3);
+        Metrics.valueHistogram("test.json_depth").record(7);
+
+        StringWriter out = new StringWriter();
+        Metrics.writeJson(out);
+        String json = out.toString();
+        assertTrue(json, json.contains("\"test.json\":3"));
+        assertTrue(json, json.contains("\"test.json_depth\":{\"unit\":\"count\",\"count\":1"));
+    }
+}
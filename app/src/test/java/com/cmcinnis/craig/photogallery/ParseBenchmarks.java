@@ -0,0 +1,46 @@
+package com.cmcinnis.craig.photogallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for turning a recorded result page into items. Run through
+ * JvmBenchmarks, the gc profiler there reports allocation per page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParseBenchmarks {
+    @Param({ "flickr_recent_100.json", "flickr_recent_500.json" })
+    public String mFixture;
+
+    private byte[] mPage;
+    private List<GalleryItem> mItems;
+
+    @Setup
+    public void setUp() throws Exception {
+        mPage = GalleryItemParserBenchmark.readFixture(mFixture);
+        mItems = GalleryItemParser.parse(new ByteArrayInputStream(mPage));
+    }
+
+    @Benchmark
+    public List<GalleryItem> parsePage() throws Exception {
+        return GalleryItemParser.parse(new ByteArrayInputStream(mPage));
+    }
+
+    //what PageLoader does with every page it delivers
+    @Benchmark
+    public GalleryItemStore.Page packPage(){
+        return GalleryItemStore.Page.of(1, mItems);
+    }
+}
@@ -0,0 +1,54 @@
+package com.cmcinnis.craig.photogallery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryTrieTest {
+
+    @Test
+    public void completesToMostRecentQuery(){
+        QueryTrie trie = new QueryTrie();
+        trie.add("cats", 1);
+        trie.add("cathedral", 3);
+        trie.add("dogs", 2);
+
+        assertEquals("cathedral", trie.complete("ca"));
+        assertEquals("cats", trie.complete("cats"));
+        assertEquals("dogs", trie.complete("d"));
+        assertNull(trie.complete("bird"));
+        assertNull(trie.complete(""));
+    }
+
+    @Test
+    public void prefersExactMatch(){
+        QueryTrie trie = new QueryTrie();
+        trie.add("cat", 1);
+        trie.add("cats", 2);
+
+        assertEquals("cat", trie.complete("cat"));
+        assertEquals("cats", trie.complete("ca"));
+    }
+
+    @Test
+    public void completesToNormalizedQuery(){
+        QueryTrie trie = new QueryTrie();
+        trie.add(" Sunset Beach ", 1);
+
+        //the same spelling the stored pages are keyed by
+        assertEquals("sunset beach", trie.complete("sunset b"));
+        assertEquals("sunset beach", trie.complete("  SUN"));
+        assertEquals(QueryPreferences.normalizeQuery(" Sunset Beach "), trie.complete("sunset"));
+    }
+
+    @Test
+    public void reusingAQueryMovesItUp(){
+        QueryTrie trie = new QueryTrie();
+        trie.add("cats", 1);
+        trie.add("cars", 2);
+        trie.add("cats", 3);
+
+        assertEquals("cats", trie.complete("ca"));
+        assertEquals(2, trie.size());
+    }
+}
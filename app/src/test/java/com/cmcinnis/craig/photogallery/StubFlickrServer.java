@@ -0,0 +1,78 @@
+package com.cmcinnis.craig.photogallery;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+/**
+ * Serves the recorded Flickr pages and sample JPEGs from localhost, so fetch
+ * timings depend on our code and not on the network.
+ *
+ * /services/rest?per_page=N answers with flickr_recent_N.json, every path
+ * under /photos/ with a sample JPEG.
+ */
+class StubFlickrServer {
+    private final HttpServer mServer;
+    private final byte[] mPage100;
+    private final byte[] mPage500;
+    private final byte[] mThumbnail;
+    private final byte[] mMedium;
+
+    StubFlickrServer() throws IOException {
+        mPage100 = GalleryItemParserBenchmark.readFixture("flickr_recent_100.json");
+        mPage500 = GalleryItemParserBenchmark.readFixture("flickr_recent_500.json");
+        mThumbnail = GalleryItemParserBenchmark.readFixture("sample_240x160.jpg");
+        mMedium = GalleryItemParserBenchmark.readFixture("sample_500x333.jpg");
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/services/rest", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String query = exchange.getRequestURI().getQuery();
+                boolean large = query != null && query.contains("per_page=500");
+                send(exchange, "application/json", large ? mPage500 : mPage100);
+            }
+        });
+        mServer.createContext("/photos/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                //"_m" is the 240px rendition, anything else gets the 500px one
+                boolean small = exchange.getRequestURI().getPath().endsWith("_m.jpg");
+                send(exchange, "image/jpeg", small ? mThumbnail : mMedium);
+            }
+        });
+        mServer.start();
+    }
+
+    String getBaseUrl(){
+        return "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    String pageUrl(int perPage){
+        return getBaseUrl() + "/services/rest?method=flickr.photos.getRecent&per_page=" + perPage;
+    }
+
+    String photoUrl(String fileName){
+        return getBaseUrl() + "/photos/" + fileName;
+    }
+
+    void stop(){
+        mServer.stop(0);
+    }
+
+    private static void send(HttpExchange exchange, String contentType, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try{
+            out.write(body);
+        }finally {
+            out.close();
+        }
+    }
+}
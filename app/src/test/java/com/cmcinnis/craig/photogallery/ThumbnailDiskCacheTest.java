@@ -0,0 +1,138 @@
+package com.cmcinnis.craig.photogallery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailDiskCacheTest {
+    private static final String URL = "https://live.staticflickr.com/65535/1_abc_m.jpg";
+    private static final byte[] BYTES = new byte[20000];
+
+    static {
+        for(int i = 0; i < BYTES.length; i++){
+            BYTES[i] = (byte) i;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void streamedEntryReadsBack() throws IOException {
+        ThumbnailDiskCache cache = new ThumbnailDiskCache(mFolder.getRoot(), 1024 * 1024);
+
+        FileInputStream stored = cache.put(URL, new ByteArrayInputStream(BYTES));
+        assertTrue(Arrays.equals(BYTES, readAll(stored)));
+        assertEquals(BYTES.length, cache.size());
+
+        FileInputStream cached = cache.openForRead(URL);
+        assertTrue(Arrays.equals(BYTES, readAll(cached)));
+        assertEquals(1, cache.hitCount());
+        assertNull(cache.openForRead(URL + "?other"));
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void streamedEntrySurvivesReopen() throws IOException {
+        ThumbnailDiskCache cache = new ThumbnailDiskCache(mFolder.getRoot(), 1024 * 1024);
+        cache.put(URL, new ByteArrayInputStream(BYTES)).close();
+
+        ThumbnailDiskCache reopened = new ThumbnailDiskCache(mFolder.getRoot(), 1024 * 1024);
+        assertTrue(reopened.contains(URL));
+        assertTrue(Arrays.equals(BYTES, readAll(reopened.openForRead(URL))));
+    }
+
+    @Test
+    public void failedStreamLeavesNothingBehind() throws IOException {
+        ThumbnailDiskCache cache = new ThumbnailDiskCache(mFolder.getRoot(), 1024 * 1024);
+        //a connection that drops part way through the body
+        InputStream broken = new InputStream() {
+            private int mRead = 0;
+
+            @Override
+            public int read() throws IOException {
+                if(mRead++ >= 1000){
+                    throw new IOException("connection reset");
+                }
+                return 1;
+            }
+        };
+
+        try{
+            cache.put(URL, broken);
+            fail("put swallowed a read error");
+        }catch (IOException expected){
+        }
+        assertFalse(cache.contains(URL));
+        for(File file : mFolder.getRoot().listFiles()){
+            assertEquals(ThumbnailDiskCache.JOURNAL_FILE, file.getName());
+        }
+    }
+
+    @Test
+    public void encodedEntrySurvivesReopen() throws IOException {
+        ThumbnailDiskCache cache = new ThumbnailDiskCache(mFolder.getRoot(), 1024 * 1024);
+        cache.put(URL, new ByteArrayInputStream(BYTES)).close();
+
+        byte[] compact = Arrays.copyOf(BYTES, 5000);
+        assertTrue(cache.putEncoded(URL, BYTES.length, compact,
+                new ThumbnailDiskCache.Encoding(URL, 120, 100, 240, 180)));
+        assertEquals(compact.length, cache.size());
+        assertEquals(BYTES.length - compact.length, cache.bytesSaved());
+
+        ThumbnailDiskCache reopened = new ThumbnailDiskCache(mFolder.getRoot(), 1024 * 1024);
+        assertTrue(Arrays.equals(compact, readAll(reopened.openForRead(URL))));
+        ThumbnailDiskCache.Encoding encoding = reopened.getEncoding(URL);
+        assertEquals(URL, encoding.mUrl);
+        assertTrue(encoding.covers(120, 100));
+        assertFalse(encoding.covers(200, 100));
+        //a bigger cell is fine once the encode is as large as the original
+        assertTrue(new ThumbnailDiskCache.Encoding(URL, 240, 180, 240, 180).covers(300, 200));
+    }
+
+    @Test
+    public void encodingIsDroppedWithItsEntry() throws IOException {
+        ThumbnailDiskCache cache = new ThumbnailDiskCache(mFolder.getRoot(), 1024 * 1024);
+        cache.put(URL, new ByteArrayInputStream(BYTES)).close();
+        ThumbnailDiskCache.Encoding encoding =
+                new ThumbnailDiskCache.Encoding(URL, 120, 100, 240, 180);
+
+        //made from bytes that have since been replaced
+        assertFalse(cache.putEncoded(URL, BYTES.length + 1, new byte[10], encoding));
+        assertNull(cache.getEncoding(URL));
+
+        assertTrue(cache.putEncoded(URL, BYTES.length, new byte[10], encoding));
+        cache.put(URL, new ByteArrayInputStream(BYTES)).close();
+        assertNull(cache.getEncoding(URL));
+
+        assertTrue(cache.putEncoded(URL, BYTES.length, new byte[10], encoding));
+        cache.remove(URL);
+        ThumbnailDiskCache reopened = new ThumbnailDiskCache(mFolder.getRoot(), 1024 * 1024);
+        assertFalse(reopened.contains(URL));
+        assertNull(reopened.getEncoding(URL));
+    }
+
+    private static byte[] readAll(FileInputStream in) throws IOException {
+        try{
+            byte[] bytes = new byte[(int) in.getChannel().size()];
+            int offset = 0;
+            int bytesRead;
+            while(offset < bytes.length
+                    && (bytesRead = in.read(bytes, offset, bytes.length - offset)) > 0){
+                offset += bytesRead;
+            }
+            return bytes;
+        }finally {
+            in.close();
+        }
+    }
+}
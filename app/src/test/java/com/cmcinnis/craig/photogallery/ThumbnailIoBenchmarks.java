@@ -0,0 +1,111 @@
+package com.cmcinnis.craig.photogallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap traffic of getting one thumbnail from the network or the disk cache to
+ * the point where BitmapFactory takes over, the old way through a byte[] and
+ * the streaming way through a FileDescriptor. Read gc.alloc.rate.norm, the
+ * bytes allocated per thumbnail. The decode itself is native on a device and
+ * covered by ThumbnailLatencyBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ThumbnailIoBenchmarks {
+    private StubFlickrServer mServer;
+    private HttpTransport mHttpTransport;
+    private File mCacheDir;
+    private ThumbnailDiskCache mDiskCache;
+    private String mThumbnailUrl;
+
+    @Setup
+    public void setUp() throws Exception {
+        mServer = new StubFlickrServer();
+        mHttpTransport = new HttpTransport(HttpTransport.DEFAULT_CONNECT_TIMEOUT_MS,
+                HttpTransport.DEFAULT_READ_TIMEOUT_MS);
+        mCacheDir = Files.createTempDirectory("thumbnails").toFile();
+        mDiskCache = new ThumbnailDiskCache(mCacheDir, 20 * 1024 * 1024);
+        mThumbnailUrl = mServer.photoUrl("43856134718_6c603f7407_m.jpg");
+        mDiskCache.put(mThumbnailUrl,
+                new ByteArrayInputStream(mHttpTransport.getBytes(mThumbnailUrl))).close();
+    }
+
+    @TearDown
+    public void tearDown(){
+        mServer.stop();
+        for(File file : mCacheDir.listFiles()){
+            file.delete();
+        }
+        mCacheDir.delete();
+    }
+
+    //before: the body into a byte[], written to disk, then decodeByteArray
+    @Benchmark
+    public byte[] networkMissToHeap() throws Exception {
+        byte[] bytes = mHttpTransport.getBytes(mThumbnailUrl);
+        mDiskCache.put(mThumbnailUrl, new ByteArrayInputStream(bytes)).close();
+        return bytes;
+    }
+
+    //after: the body streamed to disk, then decodeFileDescriptor
+    @Benchmark
+    public boolean networkMissToFileDescriptor() throws Exception {
+        HttpTransport.Response response = mHttpTransport.execute(mThumbnailUrl, false);
+        FileInputStream in;
+        try{
+            in = mDiskCache.put(mThumbnailUrl, response.getInputStream());
+        }finally {
+            response.close();
+        }
+        return decodable(in);
+    }
+
+    //before: the cached file read into a byte[], then decodeByteArray
+    @Benchmark
+    public byte[] diskHitToHeap() throws Exception {
+        FileInputStream in = mDiskCache.openForRead(mThumbnailUrl);
+        try{
+            byte[] bytes = new byte[(int) in.getChannel().size()];
+            int offset = 0;
+            int bytesRead;
+            while(offset < bytes.length
+                    && (bytesRead = in.read(bytes, offset, bytes.length - offset)) > 0){
+                offset += bytesRead;
+            }
+            return bytes;
+        }finally {
+            in.close();
+        }
+    }
+
+    //after: the cached file opened, then decodeFileDescriptor
+    @Benchmark
+    public boolean diskHitToFileDescriptor() throws Exception {
+        return decodable(mDiskCache.openForRead(mThumbnailUrl));
+    }
+
+    //what ThumbnailDownloader hands BitmapFactory, then lets go of
+    private static boolean decodable(FileInputStream in) throws Exception {
+        try{
+            FileDescriptor fd = in.getFD();
+            return fd.valid();
+        }finally {
+            in.close();
+        }
+    }
+}